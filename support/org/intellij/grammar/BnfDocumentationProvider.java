@@ -38,7 +38,7 @@ import com.intellij.ui.content.Content;
 import com.intellij.ui.popup.AbstractPopup;
 import com.intellij.util.ObjectUtils;
 import com.intellij.util.PairConsumer;
-import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import org.intellij.grammar.analysis.BnfFirstNextTable;
 import org.intellij.grammar.generator.BnfConstants;
 import org.intellij.grammar.generator.ExpressionHelper;
 import org.intellij.grammar.generator.ParserGeneratorUtil;
@@ -70,9 +70,9 @@ public class BnfDocumentationProvider implements DocumentationProvider {
   public String generateDoc(final PsiElement element, final PsiElement originalElement) {
     if (element instanceof BnfRule) {
       final BnfRule rule = (BnfRule)element;
-      BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
-      Set<String> first = analyzer.asStrings(analyzer.calcFirst(rule));
-      Set<String> next = analyzer.asStrings(analyzer.calcNext(rule).keySet());
+      BnfFirstNextTable table = BnfFirstNextTable.getCached((BnfFile)rule.getContainingFile());
+      Set<String> first = table.getFirstSet(rule);
+      Set<String> next = table.getNext(rule);
 
       StringBuilder docBuilder = new StringBuilder();
       String[] firstS = first.toArray(new String[first.size()]);
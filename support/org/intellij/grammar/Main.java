@@ -16,12 +16,31 @@
 
 package org.intellij.grammar;
 
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.PsiFile;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.execution.ParametersListUtil;
+import org.intellij.grammar.analysis.BnfBacktrackingAnalyzer;
+import org.intellij.grammar.generator.GenerationStats;
 import org.intellij.grammar.generator.ParserGenerator;
+import org.intellij.grammar.generator.ParserGeneratorUtil;
 import org.intellij.grammar.psi.BnfFile;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
@@ -31,63 +50,301 @@ import java.util.regex.Pattern;
  * @author gregsh
  */
 public class Main {
+  private static final long WATCH_DELAY = 500;
+
+  // parsed grammars are reused by daemon and watch modes while the files stay unchanged
+  private static final Map<String, Pair<Long, BnfFile>> ourFileCache = ContainerUtil.newHashMap();
+  private static final BnfParserDefinition ourParserDefinition = new BnfParserDefinition();
+
   public static void main(String[] args) throws Exception {
+    try {
+      if (args.length > 0 && args[0].startsWith("--daemon")) {
+        String value = StringUtil.trimStart(args[0], "--daemon");
+        int port = value.startsWith("=") ? StringUtil.parseInt(value.substring(1), 0) : 0;
+        if (port > 0) {
+          serveSocket(port);
+        }
+        else {
+          serveStream(System.in, System.out);
+        }
+      }
+      else {
+        run(args, System.out, true);
+      }
+    }
+    catch (Throwable throwable) {
+      throwable.printStackTrace();
+    }
+    finally {
+      System.exit(0);
+    }
+  }
+
+  /**
+   * Reads generation requests line by line, each line holds the usual command-line arguments.
+   * Arguments are separated by whitespace, arguments with spaces shall be enclosed in double quotes.
+   */
+  private static void serveStream(InputStream in, PrintStream out) throws Exception {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      if (!serveRequest(line, out)) break;
+    }
+  }
+
+  /**
+   * Accepts local connections, each connection sends one request line and receives the output.
+   */
+  private static void serveSocket(int port) throws Exception {
+    ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getByName("127.0.0.1"));
+    System.out.println("Listening on " + serverSocket.getLocalSocketAddress());
+    try {
+      boolean proceed = true;
+      while (proceed) {
+        Socket socket = serverSocket.accept();
+        try {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+          PrintStream out = new PrintStream(socket.getOutputStream(), true);
+          String line = reader.readLine();
+          proceed = line == null || serveRequest(line, out);
+          out.flush();
+        }
+        finally {
+          socket.close();
+        }
+      }
+    }
+    finally {
+      serverSocket.close();
+    }
+  }
+
+  private static boolean serveRequest(String line, PrintStream out) {
+    String request = line.trim();
+    if (request.isEmpty()) return true;
+    if (request.equals("exit")) return false;
+    long start = System.currentTimeMillis();
+    try {
+      run(ParametersListUtil.parseToArray(request), out, false);
+    }
+    catch (Throwable throwable) {
+      throwable.printStackTrace(out);
+    }
+    out.println("-- done in " + StringUtil.formatDuration(System.currentTimeMillis() - start));
+    return true;
+  }
+
+  private static void run(String[] args, PrintStream out, boolean allowWatch) throws Exception {
+    Options options = new Options();
+    while (args.length > 0 && args[0].startsWith("--")) {
+      String option = args[0];
+      if (option.startsWith("--parallel")) {
+        String value = StringUtil.trimStart(option, "--parallel");
+        options.threads = value.startsWith("=") ? StringUtil.parseInt(value.substring(1), 0) : Runtime.getRuntime().availableProcessors();
+      }
+      else if (option.equals("--backtracking")) {
+        options.backtracking = true;
+      }
+      else if (option.equals("--incremental")) {
+        options.incremental = true;
+      }
+      else if (option.equals("--stats") || option.equals("--stats=json")) {
+        options.stats = option.endsWith("json") ? "json" : "text";
+      }
+      else if (option.equals("--watch") && allowWatch) {
+        options.watch = true;
+      }
+      else {
+        out.println("Unknown option: " + option);
+        return;
+      }
+      args = ArrayUtil.remove(args, 0);
+    }
     if (args.length < 2) {
-      System.out.println("Usage: Main <output-dir> <grammars or patterns>");
+      out.println("Usage: Main [--daemon[=port]] [--watch] [--parallel[=N]] [--backtracking] [--incremental] " +
+                  "[--stats[=json]] " +
+                  "<output-dir> <grammars or patterns>");
       return;
     }
     File output = new File(args[0]);
     if (!output.exists() && !output.mkdirs() || output.isFile()) {
-      System.out.println("Output directory not found: " + output.getAbsolutePath());
+      out.println("Output directory not found: " + output.getAbsolutePath());
       return;
     }
+    String[] grammars = ArrayUtil.remove(args, 0);
+    Map<File, Long> stamps = collectGrammars(grammars, out);
+    if (stamps == null) return;
+    generate(stamps.keySet(), output, options, out);
+
+    while (options.watch) {
+      Thread.sleep(WATCH_DELAY);
+      Map<File, Long> current = collectGrammars(grammars, null);
+      if (current == null) continue;
+      List<File> changed = ContainerUtil.newArrayList();
+      for (Map.Entry<File, Long> entry : current.entrySet()) {
+        if (!entry.getValue().equals(stamps.get(entry.getKey()))) changed.add(entry.getKey());
+      }
+      stamps = current;
+      if (!changed.isEmpty()) {
+        generate(changed, output, options, out);
+      }
+    }
+  }
+
+  /**
+   * @return matching grammar files with their modification stamps or null if a directory is missing
+   */
+  @Nullable
+  private static Map<File, Long> collectGrammars(String[] grammars, @Nullable PrintStream out) {
+    Map<File, Long> result = ContainerUtil.newLinkedHashMap();
+    for (String grammar : grammars) {
+      int idx = grammar.lastIndexOf(File.separator);
+      File grammarDir = new File(idx >= 0 ? grammar.substring(0, idx) : ".");
+      String wildCard = idx >= 0 ? grammar.substring(idx + 1) : grammar;
+      Pattern grammarPattern = Pattern.compile(convertToJavaPattern(wildCard));
+      if (!grammarDir.exists() || !grammarDir.isDirectory()) {
+        if (out != null) out.println("Grammar directory not found: " + grammarDir.getAbsolutePath());
+        return null;
+      }
+
+      File[] files = grammarDir.listFiles();
+      int count = 0;
+      if (files != null) {
+        for (File file : files) {
+          if (file.isDirectory() || !grammarPattern.matcher(file.getName()).matches()) continue;
+          count ++;
+          result.put(file, file.lastModified());
+        }
+      }
+      if (count == 0 && out != null) {
+        out.println("No grammars matching '"+wildCard+"' found in: "+ grammarDir);
+      }
+    }
+    return result;
+  }
+
+  private static BnfFile getBnfFile(File file) throws IOException {
+    String path = file.getAbsolutePath();
+    long stamp = file.lastModified();
+    Pair<Long, BnfFile> cached = ourFileCache.get(path);
+    if (cached != null && cached.first == stamp) return cached.second;
+    PsiFile psiFile = LightPsi.parseFile(file, ourParserDefinition);
+    BnfFile bnfFile = psiFile instanceof BnfFile ? (BnfFile)psiFile : null;
+    if (bnfFile != null) ourFileCache.put(path, Pair.create(stamp, bnfFile));
+    return bnfFile;
+  }
 
+  private static void generate(Collection<File> grammarFiles, File output, Options options, PrintStream out) throws Exception {
+    ExecutorService executor = options.threads > 0 ? Executors.newFixedThreadPool(options.threads) : null;
+    List<GenerateTask> tasks = ContainerUtil.newArrayList();
+    long start = System.currentTimeMillis();
     try {
-      BnfParserDefinition parserDefinition = new BnfParserDefinition();
-
-      for (int i = 1; i < args.length; i++) {
-        String grammar = args[i];
-        int idx = grammar.lastIndexOf(File.separator);
-        File grammarDir = new File(idx >= 0 ? grammar.substring(0, idx) : ".");
-        String wildCard = idx >= 0 ? grammar.substring(idx + 1) : grammar;
-        Pattern grammarPattern = Pattern.compile(convertToJavaPattern(wildCard));
-        if (!grammarDir.exists() || !grammarDir.isDirectory()) {
-          System.out.println("Grammar directory not found: " + grammarDir.getAbsolutePath());
-          return;
+      for (File file : grammarFiles) {
+        BnfFile bnfFile = getBnfFile(file);
+        if (bnfFile == null) continue;
+
+        // for light-psi-all building:
+        if (output.getPath().contains("lightpsi")) {
+          Class.forName("org.jetbrains.annotations.NotNull");
+          Class.forName("org.jetbrains.annotations.Nullable");
+          Class.forName("org.intellij.lang.annotations.Pattern");
+          Class.forName("org.intellij.lang.annotations.RegExp");
+          com.intellij.psi.impl.DebugUtil.psiToString(bnfFile, false);
         }
 
-        File[] files = grammarDir.listFiles();
-        int count = 0;
-        if (files != null) {
-          for (File file : files) {
-            if (file.isDirectory() || !grammarPattern.matcher(file.getName()).matches()) continue;
-            PsiFile bnfFile = LightPsi.parseFile(file, parserDefinition);
-            if (!(bnfFile instanceof BnfFile)) continue;
-
-            // for light-psi-all building:
-            if (args[0].contains("lightpsi")) {
-              Class.forName("org.jetbrains.annotations.NotNull");
-              Class.forName("org.jetbrains.annotations.Nullable");
-              Class.forName("org.intellij.lang.annotations.Pattern");
-              Class.forName("org.intellij.lang.annotations.RegExp");
-              com.intellij.psi.impl.DebugUtil.psiToString(bnfFile, false);
-            }
-
-            count ++;
-            new ParserGenerator((BnfFile) bnfFile, grammarDir.getAbsolutePath(), output.getAbsolutePath()).generate();
-            System.out.println(file.getName() + " parser generated to " + output.getCanonicalPath());
+        GenerateTask task = new GenerateTask(bnfFile, file.getParentFile(), output, options);
+        if (executor == null) {
+          try {
+            out.println(task.call());
+          }
+          catch (Exception e) {
+            out.println(bnfFile.getName() + " generation failed");
+            e.printStackTrace(out);
           }
         }
-        if (count == 0) {
-          System.out.println("No grammars matching '"+wildCard+"' found in: "+ grammarDir);
+        else {
+          task.future = executor.submit(task);
+          tasks.add(task);
         }
       }
-    }
-    catch (Throwable throwable) {
-      throwable.printStackTrace();
+      if (executor != null) {
+        waitForTasks(tasks, options.threads, start, out);
+      }
     }
     finally {
-      System.exit(0);
+      if (executor != null) executor.shutdownNow();
+    }
+  }
+
+  private static void waitForTasks(List<GenerateTask> tasks, int threads, long start, PrintStream out) throws InterruptedException {
+    StringBuilder timings = new StringBuilder();
+    int failed = 0;
+    // report in command line order no matter which grammar is done first
+    for (GenerateTask task : tasks) {
+      try {
+        out.println(task.future.get());
+      }
+      catch (ExecutionException e) {
+        failed ++;
+        out.println(task.bnfFile.getName() + " generation failed");
+        e.getCause().printStackTrace(out);
+      }
+      if (timings.length() > 0) timings.append(", ");
+      timings.append(task.bnfFile.getName()).append(" ").append(StringUtil.formatDuration(task.time));
+    }
+    out.println(String.format("%d grammars generated%s in %s using %d threads: %s",
+                              tasks.size() - failed, failed > 0 ? " (" + failed + " failed)" : "",
+                              StringUtil.formatDuration(System.currentTimeMillis() - start), threads, timings));
+  }
+
+  private static class Options {
+    int threads;
+    boolean backtracking;
+    boolean incremental;
+    boolean watch;
+    String stats;
+  }
+
+  private static class GenerateTask implements Callable<String> {
+    final BnfFile bnfFile;
+    final File grammarDir;
+    final File output;
+    final Options options;
+    Future<String> future;
+    volatile long time;
+
+    GenerateTask(BnfFile bnfFile, File grammarDir, File output, Options options) {
+      this.bnfFile = bnfFile;
+      this.grammarDir = grammarDir;
+      this.output = output;
+      this.options = options;
+    }
+
+    @Override
+    public String call() throws Exception {
+      long start = System.currentTimeMillis();
+      ParserGenerator generator;
+      // warnings go to the task output, tasks may run concurrently and print to a client stream
+      StringBuilder warnings = new StringBuilder();
+      ParserGeneratorUtil.setWarningsBuffer(warnings);
+      try {
+        generator = new ParserGenerator(bnfFile, grammarDir.getAbsolutePath(), output.getAbsolutePath());
+        generator.setIncremental(options.incremental);
+        generator.generate();
+      }
+      finally {
+        ParserGeneratorUtil.setWarningsBuffer(null);
+        time = System.currentTimeMillis() - start;
+      }
+      String result = warnings + bnfFile.getName() + " parser generated to " + output.getCanonicalPath();
+      if (options.stats != null) {
+        GenerationStats stats = generator.getStats();
+        result += "\n" + ("json".equals(options.stats) ? stats.toJson() : stats.toString());
+      }
+      if (options.backtracking) {
+        List<BnfBacktrackingAnalyzer.RuleCost> costs = new BnfBacktrackingAnalyzer(bnfFile).analyze();
+        result += "\n" + BnfBacktrackingAnalyzer.formatReport(bnfFile.getName() + " backtracking", costs);
+      }
+      return result;
     }
   }
 
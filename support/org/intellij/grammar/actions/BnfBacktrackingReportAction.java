@@ -0,0 +1,83 @@
+/*
+ * Copyright 2011-2016 Gregory Shrago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.intellij.grammar.actions;
+
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vcs.changes.BackgroundFromStartOption;
+import com.intellij.psi.PsiDocumentManager;
+import org.intellij.grammar.analysis.BnfBacktrackingAnalyzer;
+import org.intellij.grammar.generator.BnfConstants;
+import org.intellij.grammar.psi.BnfFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * @author gregsh
+ */
+public class BnfBacktrackingReportAction extends AnAction implements DumbAware {
+
+  @Override
+  public void update(@NotNull AnActionEvent e) {
+    List<BnfFile> bnfFiles = GenerateAction.getFiles(e);
+    boolean enabled = !bnfFiles.isEmpty();
+    e.getPresentation().setEnabled(enabled);
+    e.getPresentation().setVisible(enabled);
+  }
+
+  @Override
+  public void actionPerformed(@NotNull AnActionEvent e) {
+    final Project project = getEventProject(e);
+    final List<BnfFile> bnfFiles = GenerateAction.getFiles(e);
+    if (project == null || bnfFiles.isEmpty()) return;
+    PsiDocumentManager.getInstance(project).commitAllDocuments();
+
+    ProgressManager.getInstance().run(new Task.Backgroundable(project, "Backtracking Analysis", true, new BackgroundFromStartOption()) {
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        indicator.setIndeterminate(true);
+        for (final BnfFile file : bnfFiles) {
+          indicator.checkCanceled();
+          String report = ApplicationManager.getApplication().runReadAction(new Computable<String>() {
+            @Override
+            public String compute() {
+              List<BnfBacktrackingAnalyzer.RuleCost> costs = new BnfBacktrackingAnalyzer(file).analyze();
+              return BnfBacktrackingAnalyzer.formatReport(file.getName() + " backtracking", costs);
+            }
+          });
+          int idx = report.indexOf('\n');
+          String title = idx < 0 ? report : report.substring(0, idx);
+          String content = idx < 0 ? "" : StringUtil.escapeXml(report.substring(idx + 1)).replace("\n", "<br>");
+          Notifications.Bus.notify(new Notification(
+            BnfConstants.GENERATION_GROUP, title, content, NotificationType.INFORMATION), project);
+        }
+      }
+    });
+  }
+}
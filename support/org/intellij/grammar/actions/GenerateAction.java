@@ -23,6 +23,7 @@ import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.LangDataKeys;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.progress.ProcessCanceledException;
@@ -46,13 +47,14 @@ import com.intellij.util.PathUtil;
 import com.intellij.util.containers.ContainerUtil;
 import org.intellij.grammar.KnownAttribute;
 import org.intellij.grammar.generator.BnfConstants;
+import org.intellij.grammar.generator.GenOptions;
+import org.intellij.grammar.generator.GenerationStats;
 import org.intellij.grammar.generator.ParserGenerator;
 import org.intellij.grammar.psi.BnfFile;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -93,6 +95,20 @@ public class GenerateAction extends AnAction implements DumbAware {
     });
   }
 
+  private static void reportStats(@NotNull Project project, @NotNull BnfFile file, @NotNull GenerationStats stats) {
+    File statsFile = new File(PathManager.getLogPath(), "grammar-kit/" + file.getName() + ".stats.json");
+    try {
+      FileUtil.writeToFile(statsFile, stats.toJson());
+    }
+    catch (IOException ex) {
+      LOG.warn(ex);
+    }
+    LOG_GROUP.createNotification(
+      file.getName() + " generation stats",
+      StringUtil.escapeXml(stats.toString()).replace("\n", "<br>") + "<br>saved to " + statsFile.getPath(),
+      NotificationType.INFORMATION, null).notify(project);
+  }
+
   @Override
   public void actionPerformed(@NotNull AnActionEvent e) {
     final Project project = getEventProject(e);
@@ -155,17 +171,20 @@ public class GenerateAction extends AnAction implements DumbAware {
           try {
             long time = System.currentTimeMillis();
             int filesCount = files.size();
-            ApplicationManager.getApplication().runReadAction(new ThrowableComputable<Boolean, Exception>() {
+            GenerationStats stats = ApplicationManager.getApplication().runReadAction(new ThrowableComputable<GenerationStats, Exception>() {
               @Override
-              public Boolean compute() throws Exception {
-                new ParserGenerator(file, sourcePath, genDir.getPath()) {
+              public GenerationStats compute() throws Exception {
+                ParserGenerator generator = new ParserGenerator(file, sourcePath, genDir.getPath()) {
                   @Override
-                  protected PrintWriter openOutputInner(File file) throws IOException {
+                  protected void writeOutputInner(File file, CharSequence text) throws IOException {
                     files.add(file);
-                    return super.openOutputInner(file);
+                    super.writeOutputInner(file, text);
                   }
-                }.generate();
-                return true;
+                };
+                GenOptions options = new GenOptions(file);
+                generator.setIncremental(options.generateIncremental);
+                generator.generate();
+                return options.generateStats ? generator.getStats() : null;
               }
             });
             long millis = System.currentTimeMillis() - time;
@@ -179,6 +198,7 @@ public class GenerateAction extends AnAction implements DumbAware {
               BnfConstants.GENERATION_GROUP,
               String.format("%s generated (%s)", file.getName(), StringUtil.formatFileSize(written)),
               "to " + genDir + (duration == null ? "" : " in " + duration), NotificationType.INFORMATION), project);
+            if (stats != null) reportStats(project, file, stats);
           }
           catch (ProcessCanceledException ignored) {
           }
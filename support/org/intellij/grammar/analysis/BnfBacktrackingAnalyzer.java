@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011-2016 Gregory Shrago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.intellij.grammar.analysis;
+
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.containers.ContainerUtil;
+import gnu.trove.THashSet;
+import gnu.trove.TObjectIntHashMap;
+import org.intellij.grammar.generator.ParserGeneratorUtil;
+import org.intellij.grammar.psi.*;
+import org.intellij.grammar.psi.impl.GrammarUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+import static org.intellij.grammar.analysis.BnfFirstNextAnalyzer.MATCHES_ANY;
+import static org.intellij.grammar.analysis.BnfFirstNextAnalyzer.MATCHES_EOF;
+
+/**
+ * Static estimation of backtracking cost per rule.
+ * <p/>
+ * A choice branch is tried and rolled back whenever its FIRST set (nullable prefixes included)
+ * overlaps with the FIRST set of one of the following branches. Predicates always roll back.
+ * Rollback depth is the maximum number of tokens consumed before the failure point, i.e. the pinned
+ * item or the last item of the branch sequence.
+ *
+ * @author gregsh
+ */
+public class BnfBacktrackingAnalyzer {
+
+  public static final int UNBOUNDED = 64;
+
+  private final BnfFile myFile;
+  private final BnfFirstNextTable myTable;
+  private final TObjectIntHashMap<BnfRule> myMaxLength = new TObjectIntHashMap<BnfRule>();
+  private final Set<BnfExpression> myPinned = new THashSet<BnfExpression>();
+
+  public BnfBacktrackingAnalyzer(@NotNull BnfFile file) {
+    myFile = file;
+    myTable = BnfFirstNextTable.getCached(file);
+  }
+
+  public static class RuleCost implements Comparable<RuleCost> {
+    public final BnfRule rule;
+    public int score;
+    public int depth;
+    public int ambiguousBranches;
+    public int predicates;
+    public final Set<String> tokens = new TreeSet<String>();
+
+    RuleCost(BnfRule rule) {
+      this.rule = rule;
+    }
+
+    @Override
+    public int compareTo(@NotNull RuleCost o) {
+      int c = o.score - score;
+      if (c == 0) c = o.depth - depth;
+      return c != 0 ? c : rule.getName().compareTo(o.rule.getName());
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: score %d, rollback depth %s, ambiguous branches %d, predicates %d%s",
+                           rule.getName(), score, depth >= UNBOUNDED ? "unbounded" : String.valueOf(depth),
+                           ambiguousBranches, predicates, tokens.isEmpty() ? "" : ", tokens: " + tokens);
+    }
+  }
+
+  /**
+   * @return rules that may backtrack, the most expensive first
+   */
+  @NotNull
+  public List<RuleCost> analyze() {
+    calcMaxLengths();
+    List<RuleCost> result = ContainerUtil.newArrayList();
+    for (BnfRule rule : myFile.getRules()) {
+      if (ParserGeneratorUtil.Rule.isExternal(rule)) continue;
+      myPinned.clear();
+      GrammarUtil.processPinnedExpressions(rule, new CommonProcessors.CollectProcessor<BnfExpression>(myPinned));
+      RuleCost cost = new RuleCost(rule);
+      for (BnfChoice choice : GrammarUtil.bnfTraverserNoAttrs(rule.getExpression()).filter(BnfChoice.class)) {
+        analyzeChoice(choice, cost);
+      }
+      for (BnfPredicate predicate : GrammarUtil.bnfTraverserNoAttrs(rule.getExpression()).filter(BnfPredicate.class)) {
+        int depth = getMaxLength(predicate.getExpression());
+        cost.predicates ++;
+        cost.score += Math.max(1, depth);
+        cost.depth = Math.max(cost.depth, depth);
+      }
+      if (cost.score > 0) result.add(cost);
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  @NotNull
+  public static String formatReport(@NotNull String title, @NotNull List<RuleCost> costs) {
+    StringBuilder sb = new StringBuilder(title).append(": ");
+    if (costs.isEmpty()) return sb.append("no backtracking detected").toString();
+    sb.append(costs.size()).append(" rules may backtrack");
+    for (RuleCost cost : costs) {
+      sb.append("\n  ").append(cost);
+    }
+    return sb.toString();
+  }
+
+  private void analyzeChoice(BnfChoice choice, RuleCost cost) {
+    List<BnfExpression> branches = choice.getExpressionList();
+    List<Set<String>> firsts = ContainerUtil.newArrayListWithCapacity(branches.size());
+    for (BnfExpression branch : branches) {
+      firsts.add(myTable.getFirstApproximate(branch));
+    }
+    for (int i = 0, size = branches.size(); i < size - 1; i++) {
+      int depth = -1;
+      for (int j = i + 1; j < size; j++) {
+        Set<String> overlap = getOverlap(firsts.get(i), firsts.get(j));
+        if (overlap.isEmpty()) continue;
+        if (depth < 0) depth = getRollbackDepth(branches.get(i));
+        cost.ambiguousBranches ++;
+        cost.score += Math.max(1, depth);
+        cost.depth = Math.max(cost.depth, depth);
+        cost.tokens.addAll(overlap);
+      }
+    }
+  }
+
+  private static Set<String> getOverlap(Set<String> first1, Set<String> first2) {
+    Set<String> result = new TreeSet<String>();
+    if (first1.contains(MATCHES_ANY)) result.addAll(first2);
+    else if (first2.contains(MATCHES_ANY)) result.addAll(first1);
+    else {
+      result.addAll(first1);
+      result.retainAll(first2);
+    }
+    result.remove(MATCHES_EOF);
+    return result;
+  }
+
+  private int getRollbackDepth(BnfExpression branch) {
+    BnfExpression expression = ParserGeneratorUtil.getNonTrivialNode(branch);
+    if (!(expression instanceof BnfSequence)) return 0;
+    List<BnfExpression> children = ((BnfSequence)expression).getExpressionList();
+    int depth = 0;
+    for (int i = 0, size = children.size(); i < size - 1; i++) {
+      BnfExpression child = children.get(i);
+      if (myPinned.contains(child)) break;
+      depth = Math.min(UNBOUNDED, depth + getMaxLength(child));
+    }
+    return depth;
+  }
+
+  private void calcMaxLengths() {
+    if (!myMaxLength.isEmpty()) return;
+    List<BnfRule> rules = myFile.getRules();
+    for (BnfRule rule : rules) {
+      myMaxLength.put(rule, 0);
+    }
+    // values only grow and saturate at UNBOUNDED
+    for (boolean changed = true; changed; ) {
+      changed = false;
+      for (BnfRule rule : rules) {
+        int length = getMaxLength(rule.getExpression());
+        if (length > myMaxLength.get(rule)) {
+          myMaxLength.put(rule, length);
+          changed = true;
+        }
+      }
+    }
+  }
+
+  private int getMaxLength(BnfExpression expression) {
+    if (expression instanceof BnfLiteralExpression) {
+      return 1;
+    }
+    else if (expression instanceof BnfReferenceOrToken) {
+      BnfRule rule = myFile.getRule(expression.getText());
+      if (rule == null) return 1;
+      return ParserGeneratorUtil.Rule.isExternal(rule) ? UNBOUNDED : myMaxLength.get(rule);
+    }
+    else if (expression instanceof BnfParenthesized) {
+      return getMaxLength(((BnfParenthesized)expression).getExpression());
+    }
+    else if (expression instanceof BnfChoice) {
+      int result = 0;
+      for (BnfExpression child : ((BnfChoice)expression).getExpressionList()) {
+        result = Math.max(result, getMaxLength(child));
+      }
+      return result;
+    }
+    else if (expression instanceof BnfSequence) {
+      int result = 0;
+      for (BnfExpression child : ((BnfSequence)expression).getExpressionList()) {
+        result = Math.min(UNBOUNDED, result + getMaxLength(child));
+      }
+      return result;
+    }
+    else if (expression instanceof BnfQuantified) {
+      int length = getMaxLength(((BnfQuantified)expression).getExpression());
+      IElementType type = ParserGeneratorUtil.getEffectiveType(expression);
+      return length == 0 || type == BnfTypes.BNF_OP_OPT ? length : UNBOUNDED;
+    }
+    else if (expression instanceof BnfExternalExpression) {
+      return UNBOUNDED;
+    }
+    // predicates consume nothing
+    return 0;
+  }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2011-2016 Gregory Shrago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.intellij.grammar.analysis;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.search.PsiElementProcessor;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.containers.ContainerUtil;
+import gnu.trove.THashSet;
+import gnu.trove.TObjectIntHashMap;
+import org.intellij.grammar.generator.ParserGeneratorUtil;
+import org.intellij.grammar.psi.*;
+import org.intellij.grammar.psi.impl.GrammarUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.intellij.grammar.analysis.BnfFirstNextAnalyzer.MATCHES_ANY;
+import static org.intellij.grammar.analysis.BnfFirstNextAnalyzer.MATCHES_EOF;
+
+/**
+ * Grammar-wide nullable, FIRST and NEXT sets of a grammar.
+ * Nullable and FIRST sets of rules are computed in a single fixpoint over dense token ids.
+ * Token ids are assigned up front, so the fixpoint results are never modified by lookups.
+ * <p/>
+ * FIRST sets of rules that depend on predicates, external calls or left recursion are approximate,
+ * {@link #getFirst(BnfRule)} returns null for them. {@link #getFirstSet(BnfRule)} and {@link #getNext(BnfRule)}
+ * return the same as {@link BnfFirstNextAnalyzer} for any rule, the analyzer results are computed
+ * once per rule and cached in the table like the approximate sets of sub-expressions.
+ *
+ * @author gregsh
+ */
+public class BnfFirstNextTable {
+
+  private static final Key<CachedValue<BnfFirstNextTable>> FIRST_NEXT_TABLE_KEY = Key.create("FIRST_NEXT_TABLE_KEY");
+
+  public static BnfFirstNextTable getCached(final BnfFile file) {
+    CachedValue<BnfFirstNextTable> value = file.getUserData(FIRST_NEXT_TABLE_KEY);
+    if (value == null) {
+      file.putUserData(FIRST_NEXT_TABLE_KEY, value = CachedValuesManager.getManager(file.getProject()).createCachedValue(new CachedValueProvider<BnfFirstNextTable>() {
+        @Nullable
+        @Override
+        public Result<BnfFirstNextTable> compute() {
+          return new Result<BnfFirstNextTable>(new BnfFirstNextTable(file), file);
+        }
+      }, false));
+    }
+    return value.getValue();
+  }
+
+  private final BnfFile myFile;
+  private final List<BnfRule> myRules;
+  private final TObjectIntHashMap<BnfRule> myRuleIds = new TObjectIntHashMap<BnfRule>();
+  private final List<String> myTokens = ContainerUtil.newArrayList();
+  private final TObjectIntHashMap<String> myTokenIds = new TObjectIntHashMap<String>();
+  private final Set<BnfExpression> myPinned = new THashSet<BnfExpression>();
+
+  private final BitSet[] myFirst;
+  private final BitSet myNullable = new BitSet();
+  private final BitSet myExact = new BitSet();
+
+  private final ConcurrentMap<BnfRule, Set<String>> myAnalyzedRuleFirst = ContainerUtil.newConcurrentMap();
+  private final ConcurrentMap<BnfExpression, Set<String>> myAnalyzedFirst = ContainerUtil.newConcurrentMap();
+  private final ConcurrentMap<BnfRule, Set<String>> myAnalyzedNext = ContainerUtil.newConcurrentMap();
+  private final ConcurrentMap<BnfExpression, ExpressionFirst> myApproximateFirst = ContainerUtil.newConcurrentMap();
+
+  public BnfFirstNextTable(@NotNull BnfFile file) {
+    myFile = file;
+    myRules = file.getRules();
+    int size = myRules.size();
+    myFirst = new BitSet[size];
+    addToken(MATCHES_ANY);
+    for (int i = 0; i < size; i++) {
+      BnfRule rule = myRules.get(i);
+      myRuleIds.put(rule, i);
+      myFirst[i] = new BitSet();
+      GrammarUtil.processPinnedExpressions(rule, new CommonProcessors.CollectProcessor<BnfExpression>(myPinned));
+      PsiTreeUtil.processElements(rule.getExpression(), new PsiElementProcessor<PsiElement>() {
+        @Override
+        public boolean execute(@NotNull PsiElement element) {
+          String token = element instanceof BnfExpression ? getTokenText((BnfExpression)element) : null;
+          if (token != null) addToken(token);
+          return true;
+        }
+      });
+    }
+    calcFirstSets();
+    calcExactRules();
+  }
+
+  @NotNull
+  public BnfFile getFile() {
+    return myFile;
+  }
+
+  /**
+   * @return FIRST set in {@link BnfFirstNextAnalyzer#asStrings(Set)} format or null if it is not known precisely
+   */
+  @Nullable
+  public Set<String> getFirst(@NotNull BnfRule rule) {
+    int id = getRuleId(rule);
+    if (id < 0 || !myExact.get(id)) return null;
+    return asStrings(myFirst[id], myNullable.get(id));
+  }
+
+  /**
+   * @return FIRST set of a rule as computed by {@code asStrings(calcFirst(rule))}
+   */
+  @NotNull
+  public Set<String> getFirstSet(@NotNull BnfRule rule) {
+    Set<String> exact = getFirst(rule);
+    if (exact != null) return exact;
+    Set<String> result = myAnalyzedRuleFirst.get(rule);
+    if (result == null) {
+      BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+      result = ConcurrencyUtil.cacheOrGet(myAnalyzedRuleFirst, rule, Collections.unmodifiableSet(analyzer.asStrings(analyzer.calcFirst(rule))));
+    }
+    return result;
+  }
+
+  /**
+   * @return FIRST set of an expression as computed by {@code asStrings(calcFirstInner(expression, ...))}
+   * with an empty visited set, e.g. the FIRST set of a choice branch
+   */
+  @NotNull
+  public Set<String> getFirstSet(@NotNull BnfExpression expression) {
+    Set<String> result = myAnalyzedFirst.get(expression);
+    if (result == null) {
+      BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+      Set<BnfExpression> first = analyzer.calcFirstInner(expression, new THashSet<BnfExpression>(), new THashSet<BnfExpression>());
+      result = ConcurrencyUtil.cacheOrGet(myAnalyzedFirst, expression, Collections.unmodifiableSet(analyzer.asStrings(first)));
+    }
+    return result;
+  }
+
+  /**
+   * @return NEXT set of a rule as computed by {@code asStrings(calcNext(rule).keySet())}
+   */
+  @NotNull
+  public Set<String> getNext(@NotNull BnfRule rule) {
+    Set<String> result = myAnalyzedNext.get(rule);
+    if (result == null) {
+      BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+      result = ConcurrencyUtil.cacheOrGet(myAnalyzedNext, rule, Collections.unmodifiableSet(analyzer.asStrings(analyzer.calcNext(rule).keySet())));
+    }
+    return result;
+  }
+
+  /**
+   * @return approximate FIRST set of a rule or an expression where predicates match nothing and
+   * external calls match any token
+   */
+  @NotNull
+  public Set<String> getFirstApproximate(@NotNull BnfExpression expression) {
+    ExpressionFirst first = getExpressionFirst(expression);
+    return asStrings(first.tokens, first.nullable);
+  }
+
+  public boolean isNullable(@NotNull BnfRule rule) {
+    int id = getRuleId(rule);
+    return id >= 0 && myNullable.get(id);
+  }
+
+  public boolean isNullable(@NotNull BnfExpression expression) {
+    return getExpressionFirst(expression).nullable;
+  }
+
+  public boolean isExact(@NotNull BnfRule rule) {
+    int id = getRuleId(rule);
+    return id >= 0 && myExact.get(id);
+  }
+
+  @NotNull
+  private ExpressionFirst getExpressionFirst(@NotNull BnfExpression expression) {
+    ExpressionFirst result = myApproximateFirst.get(expression);
+    if (result == null) {
+      BitSet tokens = new BitSet();
+      boolean nullable = calcFirst(expression, tokens, null);
+      result = ConcurrencyUtil.cacheOrGet(myApproximateFirst, expression, new ExpressionFirst(tokens, nullable));
+    }
+    return result;
+  }
+
+  private int getRuleId(BnfRule rule) {
+    return myRuleIds.containsKey(rule) ? myRuleIds.get(rule) : -1;
+  }
+
+  private void addToken(String token) {
+    if (myTokenIds.containsKey(token)) return;
+    myTokenIds.put(token, myTokens.size());
+    myTokens.add(token);
+  }
+
+  private void setToken(BitSet result, String token) {
+    // all the tokens of the grammar are known in advance, foreign expressions contribute nothing
+    if (myTokenIds.containsKey(token)) result.set(myTokenIds.get(token));
+  }
+
+  @Nullable
+  private String getTokenText(BnfExpression expression) {
+    if (expression instanceof BnfLiteralExpression) {
+      String text = expression.getText();
+      return StringUtil.isQuotedString(text) ? '\'' + StringUtil.unquoteString(text) + '\'' : text;
+    }
+    if (expression instanceof BnfReferenceOrToken) {
+      String text = expression.getText();
+      return myFile.getRule(text) == null ? text : null;
+    }
+    return null;
+  }
+
+  private Set<String> asStrings(BitSet tokens, boolean nullable) {
+    Set<String> result = new TreeSet<String>();
+    for (int i = tokens.nextSetBit(0); i >= 0; i = tokens.nextSetBit(i + 1)) {
+      result.add(myTokens.get(i));
+    }
+    if (nullable) result.add(MATCHES_EOF);
+    return result;
+  }
+
+  private void calcFirstSets() {
+    BitSet first = new BitSet();
+    for (boolean changed = true; changed; ) {
+      changed = false;
+      for (int i = 0, size = myRules.size(); i < size; i++) {
+        first.clear();
+        boolean nullable = calcFirst(myRules.get(i).getExpression(), first, null);
+        if (nullable && !myNullable.get(i)) {
+          myNullable.set(i);
+          changed = true;
+        }
+        first.andNot(myFirst[i]);
+        if (!first.isEmpty()) {
+          myFirst[i].or(first);
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * A rule is exact if no predicates, external calls or recursive references are reachable in FIRST positions.
+   */
+  private void calcExactRules() {
+    int size = myRules.size();
+    BitSet unsupported = new BitSet();
+    List<BitSet> edges = ContainerUtil.newArrayListWithCapacity(size);
+    for (int i = 0; i < size; i++) {
+      Dependencies dependencies = new Dependencies();
+      calcFirst(myRules.get(i).getExpression(), new BitSet(), dependencies);
+      if (dependencies.unsupported) unsupported.set(i);
+      edges.add(dependencies.rules);
+    }
+    int[] state = new int[size];
+    for (int i = 0; i < size; i++) {
+      checkExact(i, edges, unsupported, state);
+    }
+  }
+
+  private boolean checkExact(int id, List<BitSet> edges, BitSet unsupported, int[] state) {
+    if (state[id] == 1) return false; // recursion
+    if (state[id] == 2) return myExact.get(id);
+    state[id] = 1;
+    boolean exact = !unsupported.get(id);
+    BitSet next = edges.get(id);
+    for (int i = next.nextSetBit(0); i >= 0; i = next.nextSetBit(i + 1)) {
+      exact &= checkExact(i, edges, unsupported, state);
+    }
+    state[id] = 2;
+    if (exact) myExact.set(id);
+    return exact;
+  }
+
+  private boolean calcFirst(BnfExpression expression, BitSet result, @Nullable Dependencies dependencies) {
+    String token = getTokenText(expression);
+    if (token != null) {
+      setToken(result, token);
+      return false;
+    }
+    else if (expression instanceof BnfReferenceOrToken) {
+      BnfRule rule = myFile.getRule(expression.getText());
+      if (rule == null) return false;
+      if (ParserGeneratorUtil.Rule.isExternal(rule)) {
+        if (dependencies != null) dependencies.unsupported = true;
+        setToken(result, MATCHES_ANY);
+        return false;
+      }
+      int id = getRuleId(rule);
+      if (dependencies != null) dependencies.rules.set(id);
+      result.or(myFirst[id]);
+      return myNullable.get(id);
+    }
+    else if (expression instanceof BnfParenthesized) {
+      boolean nullable = calcFirst(((BnfParenthesized)expression).getExpression(), result, dependencies);
+      return nullable || expression instanceof BnfParenOptExpression;
+    }
+    else if (expression instanceof BnfChoice) {
+      boolean nullable = false;
+      for (BnfExpression child : ((BnfChoice)expression).getExpressionList()) {
+        nullable |= calcFirst(child, result, dependencies);
+      }
+      return nullable;
+    }
+    else if (expression instanceof BnfSequence) {
+      // a nullable pinned item makes the whole sequence nullable, see BnfFirstNextAnalyzer
+      boolean pinApplied = false;
+      for (BnfExpression child : ((BnfSequence)expression).getExpressionList()) {
+        if (!calcFirst(child, result, dependencies)) return pinApplied;
+        pinApplied |= myPinned.contains(child);
+      }
+      return true;
+    }
+    else if (expression instanceof BnfQuantified) {
+      boolean nullable = calcFirst(((BnfQuantified)expression).getExpression(), result, dependencies);
+      IElementType type = ParserGeneratorUtil.getEffectiveType(expression);
+      return nullable || type == BnfTypes.BNF_OP_OPT || type == BnfTypes.BNF_OP_ZEROMORE;
+    }
+    else if (expression instanceof BnfExternalExpression) {
+      if (dependencies != null) dependencies.unsupported = true;
+      setToken(result, MATCHES_ANY);
+      return false;
+    }
+    else if (expression instanceof BnfPredicate) {
+      if (dependencies != null) dependencies.unsupported = true;
+      return true;
+    }
+    return false;
+  }
+
+  private static class ExpressionFirst {
+    final BitSet tokens;
+    final boolean nullable;
+
+    ExpressionFirst(BitSet tokens, boolean nullable) {
+      this.tokens = tokens;
+      this.nullable = nullable;
+    }
+  }
+
+  private static class Dependencies {
+    final BitSet rules = new BitSet();
+    boolean unsupported;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011-2016 Gregory Shrago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.intellij.grammar.editor;
+
+import com.intellij.codeHighlighting.Pass;
+import com.intellij.codeInsight.daemon.LineMarkerInfo;
+import com.intellij.codeInsight.daemon.LineMarkerProvider;
+import com.intellij.icons.AllIcons;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.editor.markup.GutterIconRenderer;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiElement;
+import com.intellij.util.Function;
+import com.intellij.xml.util.XmlStringUtil;
+import org.intellij.grammar.livePreview.LivePreviewProfile;
+import org.intellij.grammar.psi.BnfFile;
+import org.intellij.grammar.psi.BnfRule;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Marks the rules that took most of the time of the last live preview parse.
+ * Rules are ranked by self time, i.e. without the time spent in the rules they call.
+ *
+ * @author gregsh
+ */
+public class BnfProfileLineMarkerProvider implements LineMarkerProvider {
+  private static final int EXPRESSIONS_SHOWN = 3;
+
+  // markers are updated only when the set of marked rules changes, so the tooltip shows the latest profile
+  private static final Function<BnfRule, String> TOOLTIP_PROVIDER = new Function<BnfRule, String>() {
+    @Override
+    public String fun(BnfRule rule) {
+      if (!rule.isValid()) return null;
+      LivePreviewProfile profile = LivePreviewProfile.getProfile((BnfFile)rule.getContainingFile());
+      LivePreviewProfile.Stats stats = profile == null || profile.getTotalNanos() <= 0 ? null : profile.getStats(rule);
+      if (stats == null) return null;
+      return XmlStringUtil.wrapInHtml(getTooltip(profile, rule, stats, profile.getPercent(stats)));
+    }
+  };
+
+  @Nullable
+  @Override
+  public LineMarkerInfo getLineMarkerInfo(@NotNull PsiElement element) {
+    return null;
+  }
+
+  @Override
+  public void collectSlowLineMarkers(@NotNull List<PsiElement> elements, @NotNull Collection<LineMarkerInfo> result) {
+    LivePreviewProfile profile = null;
+    for (PsiElement element : elements) {
+      if (!(element instanceof BnfRule)) continue;
+      BnfRule rule = (BnfRule)element;
+
+      ProgressManager.checkCanceled();
+
+      if (profile == null) profile = LivePreviewProfile.getProfile((BnfFile)rule.getContainingFile());
+      if (profile == null || profile.getTotalNanos() <= 0) return;
+      LivePreviewProfile.Stats stats = profile.getStats(rule);
+      if (stats == null) continue;
+      int percent = profile.getPercent(stats);
+      if (percent < LivePreviewProfile.WARM_PERCENT) continue;
+      Icon icon = percent >= LivePreviewProfile.HOT_PERCENT ? AllIcons.General.Warning : AllIcons.General.Information;
+      result.add(new MyMarkerInfo(rule, icon));
+    }
+  }
+
+  @NotNull
+  private static String getTooltip(LivePreviewProfile profile, BnfRule rule, LivePreviewProfile.Stats stats, int percent) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<b>").append(XmlStringUtil.escapeString(rule.getName())).append("</b>: ");
+    appendStats(sb, stats).append(", self ").append(StringUtil.formatDuration(stats.selfNanos / 1000000));
+    sb.append(" (").append(percent).append("% of live preview parsing)");
+    List<LivePreviewProfile.Stats> expressions = profile.getExpressionStats(rule, EXPRESSIONS_SHOWN);
+    for (LivePreviewProfile.Stats expression : expressions) {
+      String text = StringUtil.first(expression.element.getText().replaceAll("\\s+", " "), 40, true);
+      sb.append("<br><code>").append(XmlStringUtil.escapeString(text)).append("</code>: ");
+      appendStats(sb, expression);
+    }
+    return sb.toString();
+  }
+
+  @NotNull
+  private static StringBuilder appendStats(StringBuilder sb, LivePreviewProfile.Stats stats) {
+    sb.append(stats.invocations).append(" calls, ").append(stats.failures).append(" failed, ");
+    sb.append(stats.rolledBackTokens).append(" tokens rolled back, ");
+    return sb.append(StringUtil.formatDuration(stats.nanos / 1000000));
+  }
+
+  private static class MyMarkerInfo extends LineMarkerInfo<BnfRule> {
+    private MyMarkerInfo(@NotNull BnfRule rule, @NotNull Icon icon) {
+      super(rule,
+            rule.getTextRange(),
+            icon,
+            Pass.UPDATE_OVERRIDEN_MARKERS,
+            TOOLTIP_PROVIDER,
+            null,
+            GutterIconRenderer.Alignment.RIGHT
+      );
+    }
+
+    @Override
+    public GutterIconRenderer createGutterRenderer() {
+      if (myIcon == null) return null;
+      return new LineMarkerGutterIconRenderer<BnfRule>(this) {
+        @Override
+        public AnAction getClickAction() {
+          return null;
+        }
+      };
+    }
+  }
+}
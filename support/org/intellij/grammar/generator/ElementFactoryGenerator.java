@@ -60,7 +60,7 @@ public class ElementFactoryGenerator {
   public ElementFactoryGenerator(BnfFile f, String sourcePath, String outputPath) {
     myFile = f;
     myGraphHelper = RuleGraphHelper.getCached(myFile);
-    myExpressionHelper = new ExpressionHelper(myFile, myGraphHelper, true);
+    myExpressionHelper = ExpressionHelper.getCached(myFile);
     mySimpleTokens = ContainerUtil.newLinkedHashMap(RuleGraphHelper.getTokenMap(myFile));
     myReverseTokenMap = ContainerUtil.newLinkedHashMap();
     for (Map.Entry<String, String> entry : mySimpleTokens.entrySet()) {
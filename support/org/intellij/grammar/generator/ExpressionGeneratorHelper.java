@@ -19,6 +19,7 @@ package org.intellij.grammar.generator;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.containers.MultiMap;
 import org.intellij.grammar.KnownAttribute;
 import org.intellij.grammar.psi.BnfExpression;
 import org.intellij.grammar.psi.BnfRule;
@@ -40,15 +41,9 @@ public class ExpressionGeneratorHelper {
   private static final ConsumeType CONSUME_TYPE_OVERRIDE = ConsumeType.SMART;
 
   public static void generateExpressionRoot(ExpressionHelper.ExpressionInfo info, ParserGenerator g) {
-    Map<String, List<OperatorInfo>> opCalls = ContainerUtil.newLinkedHashMap();
-    for (BnfRule rule : info.priorityMap.keySet()) {
-      OperatorInfo operator = info.operatorMap.get(rule);
-      String opCall = g.generateNodeCall(info.rootRule, operator.operator, getNextName(operator.rule.getName(), 0), CONSUME_TYPE_OVERRIDE);
-      List<OperatorInfo> list = opCalls.get(opCall);
-      if (list == null) opCalls.put(opCall, list = ContainerUtil.newArrayListWithCapacity(2));
-      list.add(operator);
-    }
+    Map<String, List<OperatorInfo>> opCalls = buildOperatorCalls(info, g);
     Set<String> sortedOpCalls = opCalls.keySet();
+    Map<OperatorInfo, List<String>> operatorTable = buildOperatorTable(info, g, opCalls);
 
     for (String s : info.toString().split("\n")) {
       g.out("// " + s);
@@ -90,6 +85,12 @@ public class ExpressionGeneratorHelper {
     g.out("boolean %s = true;", g.N.result);
     g.out("while (true) {");
     g.out("Marker %s = enter_section_(%s, %s, _LEFT_, null);", g.N.marker, g.N.builder, g.N.level);
+    String operatorTableName = StringUtil.toUpperCase(methodName) + "_OPERATORS_";
+    String operatorMethodName = methodName + "_operator_";
+    List<OperatorInfo> tableOperators = ContainerUtil.newArrayList(operatorTable.keySet());
+    if (!tableOperators.isEmpty()) {
+      g.out("int %s = %s(%s, %s);", g.N.operator, operatorMethodName, g.N.builder, g.N.priority);
+    }
 
     first = true;
     for (String opCall : sortedOpCalls) {
@@ -104,7 +105,9 @@ public class ExpressionGeneratorHelper {
       if (operator.arg1 != null) {
         substCheck = format(" && leftMarkerIs(%s, %s)", g.N.builder, g.getElementType(operator.arg1));
       }
-      g.out("%sif (%s < %d%s && %s) {", first ? "" : "else ", g.N.priority, priority, substCheck, opCall);
+      int operatorIndex = tableOperators.indexOf(operator) + 1;
+      String tableCheck = operatorIndex == 0 ? "" : format("(%s == 0 || %s == %d) && ", g.N.operator, g.N.operator, operatorIndex);
+      g.out("%sif (%s%s < %d%s && %s) {", first ? "" : "else ", tableCheck, g.N.priority, priority, substCheck, opCall);
       first = false;
       String elementType = g.getElementType(operator.rule);
       boolean rightAssociative = ParserGeneratorUtil.getAttribute(operator.rule, KnownAttribute.RIGHT_ASSOCIATIVE);
@@ -143,6 +146,30 @@ public class ExpressionGeneratorHelper {
     g.out("return %s;", g.N.result);
     g.out("}");
 
+    // operator table: operator token types to operator index and priority
+    if (!tableOperators.isEmpty()) {
+      g.newLine();
+      g.out("private static final Map<IElementType, int[]> %s = new HashMap<IElementType, int[]>();", operatorTableName);
+      g.out("static {");
+      for (int i = 0, size = tableOperators.size(); i < size; i++) {
+        OperatorInfo operator = tableOperators.get(i);
+        boolean rightAssociative = ParserGeneratorUtil.getAttribute(operator.rule, KnownAttribute.RIGHT_ASSOCIATIVE);
+        String comment = format("%s %s%s %s", operator.rule.getName(), operator.type, rightAssociative ? " right" : "",
+                                StringUtil.notNullize(g.getElementType(operator.rule), "null"));
+        for (String tokenType : operatorTable.get(operator)) {
+          g.out("%s.put(%s, new int[] {%d, %d}); // %s", operatorTableName, tokenType, i + 1, info.getPriority(operator.rule), comment);
+        }
+      }
+      g.out("}");
+      g.newLine();
+      g.out("// returns 0 if all operators shall be tried, -1 if none of the table operators matches");
+      g.out("private static int %s(PsiBuilder %s, int %s) {", operatorMethodName, g.N.builder, g.N.priority);
+      g.out("if (ErrorState.get(%s).completionState != null) return 0;", g.N.builder);
+      g.out("int[] %s = %s.get(%s.getTokenType());", g.N.operator, operatorTableName, g.N.builder);
+      g.out("return %s == null || %s >= %s[1] ? -1 : %s[0];", g.N.operator, g.N.priority, g.N.operator, g.N.operator);
+      g.out("}");
+    }
+
     // operators and tails
     Set<BnfExpression> visited = ContainerUtil.newTroveSet();
     for (String opCall : sortedOpCalls) {
@@ -188,6 +215,61 @@ public class ExpressionGeneratorHelper {
     }
   }
 
+  static Map<String, List<OperatorInfo>> buildOperatorCalls(ExpressionHelper.ExpressionInfo info, ParserGenerator g) {
+    Map<String, List<OperatorInfo>> opCalls = ContainerUtil.newLinkedHashMap();
+    for (BnfRule rule : info.priorityMap.keySet()) {
+      OperatorInfo operator = info.operatorMap.get(rule);
+      String opCall = g.generateNodeCall(info.rootRule, operator.operator, getNextName(operator.rule.getName(), 0), CONSUME_TYPE_OVERRIDE);
+      List<OperatorInfo> list = opCalls.get(opCall);
+      if (list == null) opCalls.put(opCall, list = ContainerUtil.newArrayListWithCapacity(2));
+      list.add(operator);
+    }
+    return opCalls;
+  }
+
+  /**
+   * Collects BINARY, N_ARY and POSTFIX operators that can be selected by the current token type alone.
+   * An operator qualifies if its token types are not shared with other operators and
+   * no operator with unknown token types precedes it in the kernel loop.
+   */
+  static Map<OperatorInfo, List<String>> buildOperatorTable(ExpressionHelper.ExpressionInfo info,
+                                                            ParserGenerator g,
+                                                            Map<String, List<OperatorInfo>> opCalls) {
+    Map<OperatorInfo, List<String>> result = ContainerUtil.newLinkedHashMap();
+    if (!g.G.generateOperatorTable) return result;
+    Map<OperatorInfo, List<String>> candidates = ContainerUtil.newLinkedHashMap();
+    MultiMap<String, OperatorInfo> tokenOperators = MultiMap.createLinked();
+    boolean unknownSeen = false;
+    for (List<OperatorInfo> list : opCalls.values()) {
+      OperatorInfo operator = null;
+      for (OperatorInfo o : list) {
+        if (o.type == OperatorType.BINARY || o.type == OperatorType.N_ARY || o.type == OperatorType.POSTFIX) {
+          operator = o;
+          break;
+        }
+      }
+      if (operator == null) continue;
+      List<String> tokenTypes = g.getTokenElementTypes(operator.operator);
+      if (tokenTypes == null) {
+        unknownSeen = true;
+        continue;
+      }
+      for (String tokenType : tokenTypes) {
+        tokenOperators.putValue(tokenType, operator);
+      }
+      if (!unknownSeen) candidates.put(operator, tokenTypes);
+    }
+    for (OperatorInfo operator : candidates.keySet()) {
+      List<String> tokenTypes = candidates.get(operator);
+      boolean unique = true;
+      for (String tokenType : tokenTypes) {
+        unique &= tokenOperators.get(tokenType).size() == 1;
+      }
+      if (unique) result.put(operator, tokenTypes);
+    }
+    return result;
+  }
+
   @NotNull
   public static List<OperatorInfo> findOperators(Collection<OperatorInfo> list, OperatorType... types) {
     List<OperatorInfo> result = ContainerUtil.newSmartList();
@@ -28,7 +28,7 @@ import com.intellij.util.Function;
 import com.intellij.util.ObjectUtils;
 import com.intellij.util.PairConsumer;
 import com.intellij.util.containers.ContainerUtil;
-import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import org.intellij.grammar.analysis.BnfFirstNextTable;
 import org.intellij.grammar.psi.*;
 import org.intellij.grammar.psi.impl.BnfElementFactory;
 import org.jetbrains.annotations.NotNull;
@@ -56,6 +56,7 @@ public class ExpressionHelper {
 
   private final Map<BnfRule, ExpressionInfo> myExpressionMap = ContainerUtil.newTroveMap();
   private final Map<BnfRule, BnfRule> myRootRulesMap = ContainerUtil.newTroveMap();
+  private final List<String> myWarnings = ContainerUtil.newArrayList();
 
   private static final Key<CachedValue<ExpressionHelper>> EXPRESSION_HELPER_KEY = Key.create("EXPRESSION_HELPER_KEY");
   public static ExpressionHelper getCached(final BnfFile file) {
@@ -85,10 +86,21 @@ public class ExpressionHelper {
   }
 
   public void addWarning(String text) {
+    myWarnings.add(text);
     if (!myAddWarnings) return;
     ParserGeneratorUtil.addWarning(myFile.getProject(), text);
   }
 
+  /**
+   * Reports the warnings collected while building the expression rules of the {@link #getCached(BnfFile) cached} instance.
+   * Only {@link ParserGenerator} reports them, so they are shown once per generation run.
+   */
+  public void reportWarnings() {
+    for (String text : myWarnings) {
+      ParserGeneratorUtil.addWarning(myFile.getProject(), text);
+    }
+  }
+
   public ExpressionInfo getExpressionInfo(BnfRule rule) {
     BnfRule root = myRootRulesMap.get(rule);
     ExpressionInfo info = root == null ? null : myExpressionMap.get(root);
@@ -98,13 +110,13 @@ public class ExpressionHelper {
   }
 
   private void buildExpressionRules() {
-    BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+    BnfFirstNextTable table = BnfFirstNextTable.getCached(myFile);
     for (BnfRule rule : myFile.getRules()) {
       if (Rule.isPrivate(rule) || Rule.isFake(rule)) continue;
       if (myRootRulesMap.containsKey(rule)) continue;
       Map<PsiElement, RuleGraphHelper.Cardinality> contentRules = myRuleGraph.getFor(rule);
       if (!contentRules.isEmpty()) continue;
-      if (!analyzer.asStrings(analyzer.calcFirst(rule)).contains(rule.getName())) continue;
+      if (!table.getFirstSet(rule).contains(rule.getName())) continue;
 
       ExpressionInfo expressionInfo = new ExpressionInfo(rule);
       addToPriorityMap(rule, myRuleGraph.getExtendsRules(rule), expressionInfo);
@@ -44,6 +44,13 @@ public class GenOptions {
   public final Case generateTokenCase;
   public final Case generateElementCase;
   public final boolean generateTokenAccessors;
+  public final boolean generateLeftFactoring;
+  public final boolean generateOperatorTable;
+  public final boolean generateFirstCheckSets;
+  public final int methodSizeLimit;
+  public final int classMethodsLimit;
+  public final boolean generateIncremental;
+  public final boolean generateStats;
 
   public GenOptions(BnfFile myFile) {
     Map<String, String> genOptions = getRootAttribute(myFile, KnownAttribute.GENERATE).asMap();
@@ -57,6 +64,15 @@ public class GenOptions {
     generateTokenAccessors = getGenerateOption(myFile, KnownAttribute.GENERATE_TOKEN_ACCESSORS, genOptions.get("tokenAccessors"));
     generateRootRules = PatternUtil.compileSafe(genOptions.get("root-rules"), null);
     generateVisitor = !"no".equals(genOptions.get("visitor"));
+    generateLeftFactoring = "yes".equals(genOptions.get("left-factoring"));
+    generateOperatorTable = "yes".equals(genOptions.get("operator-table"));
+    generateFirstCheckSets = "yes".equals(genOptions.get("first-check-sets"));
+    // HotSpot does not compile methods larger than 8000 bytes (-XX:HugeMethodLimit)
+    methodSizeLimit = StringUtil.parseInt(genOptions.get("method-size-limit"), 8000);
+    // keeps parser class constant pool far below 65535 entries
+    classMethodsLimit = StringUtil.parseInt(genOptions.get("class-methods-limit"), 4000);
+    generateIncremental = "yes".equals(genOptions.get("incremental"));
+    generateStats = "yes".equals(genOptions.get("stats"));
     visitorValue = "void".equals(genOptions.get("visitor-value")) ? null : StringUtil.nullize(genOptions.get("visitor-value"));
 
     generateTokenCase = ParserGeneratorUtil.enumFromString(genOptions.get("token-case"), Case.UPPER);
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011-2016 Gregory Shrago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.intellij.grammar.generator;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Generated files registry stored next to the output.
+ * Each line holds a class name, a hash of the inputs the class was generated from and
+ * a checksum of the generated text. A class is up to date if both match.
+ *
+ * @author gregsh
+ */
+public class GenerationManifest {
+  private static final String VERSION = "1";
+
+  private final File myFile;
+  private final String myVersion;
+  private final Map<String, String[]> myOldEntries = ContainerUtil.newHashMap();
+  private final Map<String, String[]> myNewEntries = ContainerUtil.newTreeMap();
+
+  private GenerationManifest(@NotNull File file) {
+    myFile = file;
+    // generator changes invalidate everything
+    String jarPath = PathManager.getJarPathForClass(ParserGenerator.class);
+    myVersion = VERSION + ":" + (jarPath == null ? 0 : new File(jarPath).lastModified());
+  }
+
+  @NotNull
+  public static GenerationManifest load(@NotNull File file) {
+    GenerationManifest manifest = new GenerationManifest(file);
+    if (!file.exists()) return manifest;
+    try {
+      List<String> lines = StringUtil.split(FileUtil.loadFile(file), "\n");
+      if (lines.isEmpty() || !manifest.myVersion.equals(lines.get(0))) return manifest;
+      for (String line : lines.subList(1, lines.size())) {
+        String[] entry = line.split(" ");
+        if (entry.length == 3) manifest.myOldEntries.put(entry[0], entry);
+      }
+    }
+    catch (IOException e) {
+      ParserGenerator.LOG.warn(e);
+    }
+    return manifest;
+  }
+
+  public boolean isUpToDate(@NotNull String className, @NotNull File outFile, @NotNull String inputHash) {
+    String[] entry = myOldEntries.get(className);
+    if (entry == null || !entry[1].equals(inputHash) || !outFile.exists()) return false;
+    try {
+      if (!entry[2].equals(checksum(FileUtil.loadFileBytes(outFile)))) return false;
+    }
+    catch (IOException e) {
+      return false;
+    }
+    myNewEntries.put(className, entry);
+    return true;
+  }
+
+  public void update(@NotNull String className, @NotNull String inputHash, @NotNull byte[] output) {
+    myNewEntries.put(className, new String[]{className, inputHash, checksum(output)});
+  }
+
+  public void save() throws IOException {
+    StringBuilder sb = new StringBuilder(myVersion).append("\n");
+    for (String[] entry : myNewEntries.values()) {
+      sb.append(StringUtil.join(entry, " ")).append("\n");
+    }
+    FileUtil.writeToFile(myFile, sb.toString());
+  }
+
+  @NotNull
+  public static String hash(CharSequence... inputs) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      for (CharSequence input : inputs) {
+        digest.update(String.valueOf(input).getBytes(CharsetToolkit.UTF8_CHARSET));
+        digest.update((byte)0);
+      }
+      return new BigInteger(1, digest.digest()).toString(16);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return Long.toHexString(crc.getValue());
+  }
+}
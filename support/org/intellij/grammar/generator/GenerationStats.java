@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011-2016 Gregory Shrago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.intellij.grammar.generator;
+
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-phase timings, allocations, counters and named lists collected by {@link ParserGenerator}.
+ * Phases do not overlap, file writing is also reported separately as a part of other phases.
+ * Allocations are measured in the calling thread only, work done on the shared job pool
+ * (see {@link ParserGeneratorUtil#processConcurrently}) is not included.
+ *
+ * @author gregsh
+ */
+public class GenerationStats {
+  public static final String WRITE_PHASE = "write";
+
+  // phase -> {nanos, bytes allocated in the calling thread}
+  private final Map<String, long[]> myPhases = ContainerUtil.newLinkedHashMap();
+  private final Map<String, Long> myCounters = ContainerUtil.newLinkedHashMap();
+  private final Map<String, List<String>> myLists = ContainerUtil.newLinkedHashMap();
+
+  private String myPhase;
+  private long myStartTime;
+  private long myStartAllocated;
+
+  public void start(@NotNull String phase) {
+    stop();
+    myPhase = phase;
+    myStartAllocated = getAllocatedBytes();
+    myStartTime = System.nanoTime();
+  }
+
+  public void stop() {
+    if (myPhase == null) return;
+    long time = System.nanoTime() - myStartTime;
+    long allocated = myStartAllocated < 0 ? -1 : getAllocatedBytes() - myStartAllocated;
+    add(myPhase, time, allocated);
+    myPhase = null;
+  }
+
+  public void add(@NotNull String phase, long nanos, long allocated) {
+    long[] value = myPhases.get(phase);
+    if (value == null) myPhases.put(phase, value = new long[2]);
+    value[0] += nanos;
+    value[1] = value[1] < 0 || allocated < 0 ? -1 : value[1] + allocated;
+  }
+
+  public void count(@NotNull String counter, long delta) {
+    Long value = myCounters.get(counter);
+    myCounters.put(counter, value == null ? delta : value + delta);
+  }
+
+  public void list(@NotNull String list, @NotNull String item) {
+    List<String> value = myLists.get(list);
+    if (value == null) myLists.put(list, value = ContainerUtil.newArrayList());
+    value.add(item);
+  }
+
+  @NotNull
+  public List<String> getList(@NotNull String list) {
+    List<String> value = myLists.get(list);
+    return value == null ? Collections.<String>emptyList() : value;
+  }
+
+  public long getTotalMillis() {
+    long total = 0;
+    for (Map.Entry<String, long[]> entry : myPhases.entrySet()) {
+      if (!WRITE_PHASE.equals(entry.getKey())) total += entry.getValue()[0];
+    }
+    return total / 1000000;
+  }
+
+  @NotNull
+  public String toJson() {
+    StringBuilder sb = new StringBuilder("{\"phases\": {");
+    boolean first = true;
+    for (Map.Entry<String, long[]> entry : myPhases.entrySet()) {
+      if (first) first = false; else sb.append(", ");
+      sb.append("\"").append(entry.getKey()).append("\": {\"ms\": ").append(entry.getValue()[0] / 1000000);
+      sb.append(", \"callingThreadAllocated\": ").append(entry.getValue()[1]).append("}");
+    }
+    sb.append("}, \"counters\": {");
+    first = true;
+    for (Map.Entry<String, Long> entry : myCounters.entrySet()) {
+      if (first) first = false; else sb.append(", ");
+      sb.append("\"").append(entry.getKey()).append("\": ").append(entry.getValue());
+    }
+    sb.append("}, \"lists\": {");
+    first = true;
+    for (Map.Entry<String, List<String>> entry : myLists.entrySet()) {
+      if (first) first = false; else sb.append(", ");
+      sb.append("\"").append(entry.getKey()).append("\": [");
+      for (int i = 0; i < entry.getValue().size(); i++) {
+        if (i > 0) sb.append(", ");
+        sb.append("\"").append(StringUtil.escapeStringCharacters(entry.getValue().get(i))).append("\"");
+      }
+      sb.append("]");
+    }
+    return sb.append("}}").toString();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, long[]> entry : myPhases.entrySet()) {
+      long allocated = entry.getValue()[1];
+      sb.append(entry.getKey()).append(": ").append(StringUtil.formatDuration(entry.getValue()[0] / 1000000));
+      if (allocated >= 0) sb.append(", ").append(StringUtil.formatFileSize(allocated)).append(" allocated in calling thread");
+      sb.append("\n");
+    }
+    boolean first = true;
+    for (Map.Entry<String, Long> entry : myCounters.entrySet()) {
+      if (first) first = false; else sb.append(", ");
+      sb.append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    for (Map.Entry<String, List<String>> entry : myLists.entrySet()) {
+      sb.append("\n").append(entry.getKey()).append(" (").append(entry.getValue().size()).append("): ");
+      sb.append(StringUtil.join(entry.getValue(), ", "));
+    }
+    return sb.toString();
+  }
+
+  private static long getAllocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+    com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+    if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) return -1;
+    return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
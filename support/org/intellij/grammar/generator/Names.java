@@ -31,6 +31,7 @@ class Names {
   public final String pos;
   public final String root;
   public final String priority;
+  public final String operator;
   public final String argPrefix;
   public final String psiLocal = "p";
 
@@ -42,6 +43,7 @@ class Names {
                 String pos,
                 String root,
                 String priority,
+                String operator,
                 String argPrefix) {
     this.builder = builder;
     this.level = level;
@@ -51,19 +53,20 @@ class Names {
     this.pos = pos;
     this.root = root;
     this.priority = priority;
+    this.operator = operator;
     this.argPrefix = argPrefix;
   }
 
   public static Names classicNames() {
-    return new Names("builder_", "level_", "marker_", "pinned_", "result_", "pos_", "root_", "priority_", "");
+    return new Names("builder_", "level_", "marker_", "pinned_", "result_", "pos_", "root_", "priority_", "operator_", "");
   }
 
   public static Names longNames() {
-    return new Names("builder", "level", "marker", "pinned", "result", "pos", "type", "priority", "a");
+    return new Names("builder", "level", "marker", "pinned", "result", "pos", "type", "priority", "operator", "a");
   }
 
   public static Names shortNames() {
-    return new Names("b", "l", "m", "p", "r", "c", "t", "g", "_");
+    return new Names("b", "l", "m", "p", "r", "c", "t", "g", "o", "_");
   }
 
   @NotNull
@@ -27,6 +27,7 @@ import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.Function;
 import com.intellij.util.ObjectUtils;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.JBIterable;
 import com.intellij.util.containers.MultiMap;
@@ -34,6 +35,7 @@ import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.intellij.grammar.KnownAttribute;
 import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import org.intellij.grammar.analysis.BnfFirstNextTable;
 import org.intellij.grammar.java.JavaHelper;
 import org.intellij.grammar.psi.*;
 import org.intellij.grammar.psi.impl.GrammarUtil;
@@ -43,7 +45,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import static java.lang.String.format;
@@ -59,11 +62,16 @@ import static org.intellij.grammar.psi.BnfTypes.*;
  */
 public class ParserGenerator {
   public static final Logger LOG = Logger.getInstance("ParserGenerator");
+  public static final String LEFT_FACTORED_CHOICES = "left-factored choices";
   private static final String TYPE_TEXT_SEPARATORS = "<>,[]";
+  private static final String LINE_SEPARATOR = SystemProperties.getLineSeparator();
+  private static final String[] INDENTS = new String[32];
 
   private final Map<String, String> myRuleParserClasses = ContainerUtil.newTreeMap();
+  private final Set<String> myRootParserRules = ContainerUtil.newTreeSet();
   private final Map<String, String> myParserLambdas = ContainerUtil.newTreeMap();
   private final Set<String> myPackageClasses = ContainerUtil.newTreeSet();
+  private final Map<String, String> myFirstSets = ContainerUtil.newLinkedHashMap();
   private final Map<String, String> mySimpleTokens;
   private final Set<String> myTokensUsedInGrammar = ContainerUtil.newLinkedHashSet();
   private final BnfFile myFile;
@@ -78,10 +86,18 @@ public class ParserGenerator {
 
 
   private int myOffset;
-  private PrintWriter myOut;
+  private File myOutFile;
+  private String myOutClassName;
+  private String myOutInputHash;
+  private final StringBuilder myOut = new StringBuilder();
+  private final GenerationStats myStats = new GenerationStats();
+  private File myManifestFile;
+  private GenerationManifest myManifest;
+  private String myGrammarHash;
   private Function<String, String> myShortener;
 
   private final RuleGraphHelper myGraphHelper;
+  private final BnfFirstNextTable myFirstNextTable;
   private final ExpressionHelper myExpressionHelper;
   private final RuleMethodsHelper myRulesMethodsHelper;
   private final KnownAttribute.ListValue myUnknownRootAttributes;
@@ -112,24 +128,135 @@ public class ParserGenerator {
                               tmpVisitorClass : myRuleClassPrefix + tmpVisitorClass;
     mySimpleTokens = ContainerUtil.newLinkedHashMap(RuleGraphHelper.getTokenMap(myFile));
     myUnknownRootAttributes = collectUnknownAttributes(myFile);
+    myStats.start("rule graph");
     myGraphHelper = RuleGraphHelper.getCached(myFile);
-    myExpressionHelper = new ExpressionHelper(myFile, myGraphHelper, true);
+    myStats.start("first sets");
+    myFirstNextTable = BnfFirstNextTable.getCached(myFile);
+    myStats.start("expressions");
+    myExpressionHelper = ExpressionHelper.getCached(myFile);
+    myExpressionHelper.reportWarnings();
+    myStats.start("rule methods");
     myRulesMethodsHelper = new RuleMethodsHelper(myGraphHelper, myExpressionHelper, mySimpleTokens, G);
+    myStats.start("parser");
+    splitRootParserClass();
+    myStats.stop();
+    myStats.count("rules", rules.size());
   }
 
-  private void openOutput(String className) throws IOException {
-    File file = new File(myOutputPath, className.replace('.', File.separatorChar) + ".java");
-    myOut = openOutputInner(file);
+  @NotNull
+  public GenerationStats getStats() {
+    return myStats;
+  }
+
+  /**
+   * Moves rules of an oversized grammar root parser class to additional classes named after it.
+   * The grammar root rule and expression rules stay in place.
+   */
+  private void splitRootParserClass() {
+    if (myGrammarRootParser == null) return;
+    Map<String, Integer> movable = ContainerUtil.newLinkedHashMap();
+    int size = 0;
+    for (Map.Entry<String, String> entry : myRuleParserClasses.entrySet()) {
+      if (!myGrammarRootParser.equals(entry.getValue())) continue;
+      myRootParserRules.add(entry.getKey());
+      BnfRule rule = myFile.getRule(entry.getKey());
+      if (Rule.isExternal(rule) || Rule.isFake(rule)) continue;
+      int count = estimateMethodCount(rule);
+      if (rule.getName().equals(myGrammarRoot) || myExpressionHelper.getExpressionInfo(rule) != null) {
+        size += count;
+      }
+      else {
+        movable.put(rule.getName(), count);
+      }
+    }
+    int total = size;
+    for (Integer count : movable.values()) total += count;
+    if (total <= G.classMethodsLimit) return;
+    Set<String> usedClasses = ContainerUtil.newHashSet(myRuleParserClasses.values());
+    int index = 0;
+    String parserClass = myGrammarRootParser;
+    for (Map.Entry<String, Integer> entry : movable.entrySet()) {
+      if (size + entry.getValue() > G.classMethodsLimit) {
+        do {
+          parserClass = myGrammarRootParser + (++index);
+        }
+        while (usedClasses.contains(parserClass));
+        size = 0;
+      }
+      size += entry.getValue();
+      myRuleParserClasses.put(entry.getKey(), parserClass);
+    }
+  }
+
+  /**
+   * Enables incremental generation: classes whose inputs did not change since the previous run
+   * are not generated again. Inputs and output checksums are kept in the manifest file next to the output.
+   */
+  public void setIncremental(boolean incremental) {
+    myManifestFile = incremental ? new File(myOutputPath, "." + myFile.getName() + ".manifest") : null;
+  }
+
+  private File getOutputFile(String className) {
+    return new File(myOutputPath, className.replace('.', File.separatorChar) + ".java");
+  }
+
+  private boolean isUpToDate(String className, @Nullable String inputHash) {
+    boolean upToDate = myManifest != null && inputHash != null && myManifest.isUpToDate(className, getOutputFile(className), inputHash);
+    if (upToDate) myStats.count("files up to date", 1);
+    return upToDate;
+  }
+
+  private void openOutput(String className) {
+    openOutput(className, myGrammarHash);
+  }
+
+  private void openOutput(String className, @Nullable String inputHash) {
+    myOutFile = getOutputFile(className);
+    myOutClassName = className;
+    myOutInputHash = inputHash;
+    myOut.setLength(0);
+  }
+
+  private void closeOutput() throws IOException {
+    long start = System.nanoTime();
+    writeOutputInner(myOutFile, myOut);
+    myStats.add(GenerationStats.WRITE_PHASE, System.nanoTime() - start, -1);
+    myStats.count("files generated", 1);
+    myStats.count("chars generated", myOut.length());
+    if (myManifest != null && myOutInputHash != null) {
+      myManifest.update(myOutClassName, myOutInputHash, myOut.toString().getBytes());
+    }
   }
 
-  protected PrintWriter openOutputInner(File file) throws IOException {
+  /**
+   * Writes the generated text unless the file already has exactly the same content,
+   * so that unchanged files keep their timestamps.
+   */
+  protected void writeOutputInner(File file, CharSequence text) throws IOException {
+    byte[] bytes = text.toString().getBytes();
+    if (file.exists() && file.length() == bytes.length && Arrays.equals(FileUtil.loadFileBytes(file), bytes)) return;
     //noinspection ResultOfMethodCallIgnored
     file.getParentFile().mkdirs();
-    return new PrintWriter(new FileOutputStream(file));
+    FileOutputStream stream = new FileOutputStream(file);
+    try {
+      FileChannel channel = stream.getChannel();
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    finally {
+      stream.close();
+    }
   }
 
-  private void closeOutput() {
-    myOut.close();
+  private static String getIndent(int offset) {
+    if (offset < INDENTS.length) {
+      String indent = INDENTS[offset];
+      if (indent == null) INDENTS[offset] = indent = StringUtil.repeat("  ", offset);
+      return indent;
+    }
+    return StringUtil.repeat("  ", offset);
   }
 
   public void out(String s, Object... args) {
@@ -139,7 +266,7 @@ public class ParserGenerator {
   public void out(String s) {
     int length = s.length();
     if (length == 0) {
-      myOut.println();
+      myOut.append(LINE_SEPARATOR);
       return;
     }
     boolean isComment = s.startsWith("//");
@@ -147,14 +274,14 @@ public class ParserGenerator {
     for (int start = 0, end; start < length; start = end + 1) {
       end = StringUtil.indexOf(s, '\n', start, length);
       if (end == -1) end = length;
-      String substring = s.substring(start, end);
-      if (!isComment && substring.startsWith("}")) myOffset--;
+      char last = end > start ? s.charAt(end - 1) : 0;
+      if (!isComment && end > start && s.charAt(start) == '}') myOffset--;
       if (myOffset > 0) {
-        myOut.print(StringUtil.repeat("  ", newStatement ? myOffset : myOffset + 1));
+        myOut.append(getIndent(newStatement ? myOffset : myOffset + 1));
       }
-      if (!isComment && substring.endsWith("{")) myOffset++;
-      myOut.println(substring);
-      newStatement = substring.endsWith(";") || substring.endsWith("{") || substring.endsWith("}");
+      if (!isComment && last == '{') myOffset++;
+      myOut.append(s, start, end).append(LINE_SEPARATOR);
+      newStatement = last == ';' || last == '{' || last == '}';
     }
   }
 
@@ -163,7 +290,19 @@ public class ParserGenerator {
   }
 
   public void generate() throws IOException {
+    myManifest = myManifestFile == null ? null : GenerationManifest.load(myManifestFile);
+    myGrammarHash = myManifest == null ? null : GenerationManifest.hash(myFile.getText(), myOutputPath);
+    try {
+      generateInner();
+    }
+    finally {
+      myStats.stop();
+    }
+  }
+
+  private void generateInner() throws IOException {
     {
+      myStats.start("parser");
       generateParser();
     }
     Map<String, BnfRule> sortedCompositeTypes = new TreeMap<String, BnfRule>();
@@ -178,48 +317,72 @@ public class ParserGenerator {
       }
       sortedPsiRules.put(rule.getName(), rule);
     }
-    if (myGrammarRoot != null && (G.generateTokenTypes || G.generateElementTypes || G.generatePsi && G.generatePsiFactory)) {
+    if (shouldGenerateElementTypesHolder()) {
+      myStats.start("element types");
       String className = getRootAttribute(myFile, KnownAttribute.ELEMENT_TYPE_HOLDER_CLASS);
-      openOutput(className);
-      try {
-        generateElementTypesHolder(className, sortedCompositeTypes);
-      }
-      finally {
-        closeOutput();
+      if (!isUpToDate(className, myGrammarHash)) {
+        openOutput(className);
+        try {
+          generateElementTypesHolder(className, sortedCompositeTypes);
+        }
+        finally {
+          closeOutput();
+        }
       }
     }
     if (G.generatePsi) {
       checkClassAvailability(myFile, getRootAttribute(myFile, KnownAttribute.PSI_IMPL_UTIL_CLASS),
                              "PSI method signatures will not be detected");
 
+      myStats.start("rule methods");
       myRulesMethodsHelper.buildMaps(sortedPsiRules.values());
       for (BnfRule r : sortedPsiRules.values()) {
         myPackageClasses.add(getRulePsiClassName(r, myRuleClassPrefix));
+        myStats.count("psi classes", 1);
+        myStats.count("accessors", myRulesMethodsHelper.getFor(r).size());
       }
       Map<String, String> infClasses = ContainerUtil.newTroveMap();
       String psiPackage = getPsiPackage(myFile);
       String suffix = getPsiImplSuffix(myFile);
       String psiImplPackage = getPsiImplPackage(myFile);
 
+      Map<String, String> psiHashes = ContainerUtil.newTroveMap();
+      String attributesText = myManifest == null ? null : StringUtil.join(myFile.getAttributes(), new Function<BnfAttrs, String>() {
+        @Override
+        public String fun(BnfAttrs attrs) {
+          return attrs.getText();
+        }
+      }, "\n");
+
+      myStats.start("psi interfaces");
       for (String ruleName : sortedPsiRules.keySet()) {
         BnfRule rule = myFile.getRule(ruleName);
         String psiClass = psiPackage + "." + getRulePsiClassName(rule, myRuleClassPrefix);
+        Collection<String> psiSupers = getSuperInterfaceNames(myFile, rule, psiPackage, myRuleClassPrefix);
 
         infClasses.put(ruleName, psiClass);
-        openOutput(psiClass);
+        String ruleHash = attributesText == null ? null : getPsiInputHash(rule, attributesText);
+        psiHashes.put(ruleName, ruleHash);
+        String inputHash = ruleHash == null ? null : GenerationManifest.hash(ruleHash, StringUtil.join(psiSupers, ","));
+        if (isUpToDate(psiClass, inputHash)) continue;
+        openOutput(psiClass, inputHash);
         try {
-          generatePsiIntf(rule, psiClass, getSuperInterfaceNames(myFile, rule, psiPackage, myRuleClassPrefix));
+          generatePsiIntf(rule, psiClass, psiSupers);
         }
         finally {
           closeOutput();
         }
       }
+      myStats.start("psi implementations");
       for (String ruleName : sortedPsiRules.keySet()) {
         BnfRule rule = myFile.getRule(ruleName);
         String psiImplClass = psiImplPackage + "." + getRulePsiClassName(rule, myRuleClassPrefix) + suffix;
-        openOutput(psiImplClass);
+        String superClassName = getSuperClassName(myFile, rule, psiImplPackage, myRuleClassPrefix, suffix);
+        String ruleHash = psiHashes.get(ruleName);
+        String inputHash = ruleHash == null ? null : GenerationManifest.hash(ruleHash, infClasses.get(ruleName), superClassName);
+        if (isUpToDate(psiImplClass, inputHash)) continue;
+        openOutput(psiImplClass, inputHash);
         try {
-          String superClassName = getSuperClassName(myFile, rule, psiImplPackage, myRuleClassPrefix, suffix);
           generatePsiImpl(rule, psiImplClass, infClasses.get(ruleName), superClassName);
         }
         finally {
@@ -227,16 +390,27 @@ public class ParserGenerator {
         }
       }
       if (visitorClassName != null && myGrammarRoot != null) {
+        myStats.start("visitor");
         String psiClass = psiPackage + "." + visitorClassName;
-        openOutput(psiClass);
-        try {
-          generateVisitor(psiClass, sortedPsiRules);
-        }
-        finally {
-          closeOutput();
+        if (!isUpToDate(psiClass, myGrammarHash)) {
+          openOutput(psiClass);
+          try {
+            generateVisitor(psiClass, sortedPsiRules);
+          }
+          finally {
+            closeOutput();
+          }
         }
       }
     }
+    myStats.stop();
+    if (myManifest != null) {
+      myManifest.save();
+    }
+  }
+
+  private boolean shouldGenerateElementTypesHolder() {
+    return myGrammarRoot != null && (G.generateTokenTypes || G.generateElementTypes || G.generatePsi && G.generatePsiFactory);
   }
 
   private void generateVisitor(String psiClass, Map<String, BnfRule> sortedRules) {
@@ -299,13 +473,30 @@ public class ParserGenerator {
 
 
   public void generateParser() throws IOException {
-    for (String className : new TreeSet<String>(myRuleParserClasses.values())) {
+    Set<String> parserClasses = new TreeSet<String>(myRuleParserClasses.values());
+    // the element types holder declares the tokens collected while the parser classes are emitted,
+    // so parser classes are skipped only when all of them and the holder are up to date
+    Set<String> sharedClasses = new TreeSet<String>(parserClasses);
+    if (shouldGenerateElementTypesHolder()) {
+      sharedClasses.add(getRootAttribute(myFile, KnownAttribute.ELEMENT_TYPE_HOLDER_CLASS));
+    }
+    boolean upToDate = myManifest != null && myGrammarHash != null;
+    for (String className : sharedClasses) {
+      if (!upToDate) break;
+      upToDate = myManifest.isUpToDate(className, getOutputFile(className), myGrammarHash);
+    }
+    if (upToDate) {
+      myStats.count("files up to date", parserClasses.size());
+      return;
+    }
+    for (String className : parserClasses) {
       Map<String, BnfRule> map = new TreeMap<String, BnfRule>();
       for (String ruleName : myRuleParserClasses.keySet()) {
         if (className.equals(myRuleParserClasses.get(ruleName))) {
           map.put(ruleName, myFile.getRule(ruleName));
         }
       }
+      myStats.count("parser classes", 1);
       openOutput(className);
       try {
         generateParser(className, map.keySet());
@@ -316,6 +507,17 @@ public class ParserGenerator {
     }
   }
 
+  private boolean hasOperatorTables(Set<String> ownRuleNames) {
+    for (String ruleName : ownRuleNames) {
+      ExpressionHelper.ExpressionInfo info = myExpressionHelper.getExpressionInfo(myFile.getRule(ruleName));
+      if (info != null && info.rootRule.getName().equals(ruleName) &&
+          !ExpressionGeneratorHelper.buildOperatorTable(info, this, ExpressionGeneratorHelper.buildOperatorCalls(info, this)).isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public void generateParser(String parserClass, final Set<String> ownRuleNames) {
     String elementTypeHolderClass = getRootAttribute(myFile, KnownAttribute.ELEMENT_TYPE_HOLDER_CLASS);
     List<String> parserImports = getRootAttribute(myFile, KnownAttribute.PARSER_IMPORTS).asStrings();
@@ -335,16 +537,20 @@ public class ParserGenerator {
                                    BnfConstants.PSI_PARSER_CLASS,
                                    BnfConstants.LIGHT_PSI_PARSER_CLASS));
     }
+    // FIRST set constants are known only when the rules are generated, TokenSet is imported here if needed
+    int tokenSetImportIndex = imports.size();
+    if (G.generateOperatorTable && hasOperatorTables(ownRuleNames)) {
+      imports.addAll(Arrays.asList(BnfConstants.IELEMENTTYPE_CLASS, "java.util.HashMap", "java.util.Map"));
+    }
     imports.addAll(parserImports);
 
-    generateClassHeader(parserClass, imports,
-                        "@SuppressWarnings({\"SimplifiableIfStatement\", \"UnusedAssignment\"})",
-                        false, "",
-                        rootParser ? BnfConstants.PSI_PARSER_CLASS : "",
-                        rootParser ? BnfConstants.LIGHT_PSI_PARSER_CLASS : "");
+    int headerStart = myOut.length();
+    int headerOffset = myOffset;
+    generateParserClassHeader(parserClass, imports, rootParser);
+    int bodyStart = myOut.length();
 
     if (rootParser) {
-      generateRootParserContent(ownRuleNames);
+      generateRootParserContent();
     }
     for (String ruleName : ownRuleNames) {
       BnfRule rule = myFile.getRule(ruleName);
@@ -363,6 +569,11 @@ public class ParserGenerator {
         newLine();
       }
     }
+    boolean hasFirstSets = !myFirstSets.isEmpty();
+    for (Map.Entry<String, String> e : myFirstSets.entrySet()) {
+      out("private static final TokenSet %s = create_token_set_(%s);", e.getValue(), e.getKey());
+    }
+    myFirstSets.clear();
     Map<String, String> reversedLambdas = new THashMap<String, String>();
     for (Map.Entry<String, String> e : myParserLambdas.entrySet()) {
       String body = e.getValue();
@@ -378,13 +589,32 @@ public class ParserGenerator {
       }
     }
     out("}");
+    if (hasFirstSets && !imports.contains(BnfConstants.TOKEN_SET_CLASS)) {
+      List<String> newImports = ContainerUtil.newArrayList(imports);
+      newImports.add(tokenSetImportIndex, BnfConstants.TOKEN_SET_CLASS);
+      String body = myOut.substring(bodyStart);
+      int bodyOffset = myOffset;
+      myOut.setLength(headerStart);
+      myOffset = headerOffset;
+      generateParserClassHeader(parserClass, newImports, rootParser);
+      myOut.append(body);
+      myOffset = bodyOffset;
+    }
+  }
+
+  private void generateParserClassHeader(String parserClass, Collection<String> imports, boolean rootParser) {
+    generateClassHeader(parserClass, imports,
+                        "@SuppressWarnings({\"SimplifiableIfStatement\", \"UnusedAssignment\"})",
+                        false, "",
+                        rootParser ? BnfConstants.PSI_PARSER_CLASS : "",
+                        rootParser ? BnfConstants.LIGHT_PSI_PARSER_CLASS : "");
   }
 
   public String wrapCallWithParserInstance(String nodeCall) {
     return format("new Parser() {\npublic boolean parse(PsiBuilder %s, int %s) {\nreturn %s;\n}\n}", N.builder, N.level, nodeCall);
   }
 
-  private void generateRootParserContent(Set<String> ownRuleNames) {
+  private void generateRootParserContent() {
     List<Set<String>> extendsSet = buildExtendsSet(myGraphHelper.getRuleExtendsMap());
     boolean generateExtendsSets = !extendsSet.isEmpty();
     out("public ASTNode parse(IElementType %s, PsiBuilder %s) {", N.root, N.builder);
@@ -396,27 +626,46 @@ public class ParserGenerator {
     out("boolean %s;", N.result);
     out("%s = adapt_builder_(%s, %s, this, %s);", N.builder, N.root, N.builder, generateExtendsSets ? "EXTENDS_SETS_" : null);
     out("Marker %s = enter_section_(%s, 0, _COLLAPSE_, null);", N.marker, N.builder);
-    boolean first = true;
-    for (String ruleName : ownRuleNames) {
+    Map<String, String> rootCalls = ContainerUtil.newLinkedHashMap();
+    int rootCallsSize = 0;
+    // rules moved to the additional parser classes are still parsed from here
+    for (String ruleName : myRootParserRules) {
       BnfRule rule = myFile.getRule(ruleName);
       if (!RuleGraphHelper.shouldGeneratePsi(rule, false) || Rule.isMeta(rule)) continue;
       if (Rule.isFake(rule)) continue;
       if (G.generateRootRules != null && !G.generateRootRules.matcher(ruleName).matches()) continue;
       String elementType = getElementType(rule);
-      out("%sif (%s == %s) {", first ? "" : "else ", N.root, elementType);
-      String nodeCall = generateNodeCall(rule, null, ruleName);
-      out("%s = %s;", N.result, nodeCall.replace(format("%s + 1", N.level), "0"));
-      out("}");
-      if (first) first = false;
+      String nodeCall = generateNodeCall(rule, null, ruleName).replace(format("%s + 1", N.level), "0");
+      String parserClass = myRuleParserClasses.get(ruleName);
+      if (!parserClass.equals(myGrammarRootParser)) {
+        nodeCall = StringUtil.getShortName(parserClass) + "." + nodeCall;
+      }
+      rootCalls.put(elementType, nodeCall);
+      rootCallsSize += estimateBytecodeSize(elementType) + estimateBytecodeSize(nodeCall) + 3;
     }
-    {
-      if (!first) out("else {");
-      out("%s = parse_root_(%s, %s, 0);", N.result, N.root, N.builder);
-      if (!first) out("}");
+    int partSize = rootCallsSize > G.methodSizeLimit ? rootCalls.size() * (G.methodSizeLimit / 2) / rootCallsSize + 1 : 0;
+    if (partSize == 0) {
+      generateRootCalls(ContainerUtil.newArrayList(rootCalls.entrySet()), format("parse_root_(%s, %s, 0)", N.root, N.builder));
+    }
+    else {
+      out("%s = parse_light_0_(%s, %s);", N.result, N.root, N.builder);
     }
     out("exit_section_(%s, 0, %s, %s, %s, true, TRUE_CONDITION);", N.builder, N.marker, N.root, N.result);
     out("}");
     newLine();
+    if (partSize > 0) {
+      List<Map.Entry<String, String>> entries = ContainerUtil.newArrayList(rootCalls.entrySet());
+      for (int start = 0, part = 0, size = entries.size(); start < size; start += partSize, part++) {
+        out("private boolean parse_light_%d_(IElementType %s, PsiBuilder %s) {", part, N.root, N.builder);
+        out("boolean %s;", N.result);
+        generateRootCalls(entries.subList(start, Math.min(start + partSize, size)), start + partSize < size ?
+                          format("parse_light_%d_(%s, %s)", part + 1, N.root, N.builder) :
+                          format("parse_root_(%s, %s, 0)", N.root, N.builder));
+        out("return %s;", N.result);
+        out("}");
+        newLine();
+      }
+    }
     {
       BnfRule rootRule = myFile.getRule(myGrammarRoot);
       String nodeCall = generateNodeCall(rootRule, null, myGrammarRoot);
@@ -443,6 +692,19 @@ public class ParserGenerator {
     }
   }
 
+  private void generateRootCalls(List<Map.Entry<String, String>> rootCalls, String defaultCall) {
+    boolean first = true;
+    for (Map.Entry<String, String> entry : rootCalls) {
+      out("%sif (%s == %s) {", first ? "" : "else ", N.root, entry.getKey());
+      out("%s = %s;", N.result, entry.getValue());
+      out("}");
+      if (first) first = false;
+    }
+    if (!first) out("else {");
+    out("%s = %s;", N.result, defaultCall);
+    if (!first) out("}");
+  }
+
   @NotNull
   private List<Set<String>> buildExtendsSet(@NotNull MultiMap<BnfRule, BnfRule> map) {
     if (map.isEmpty()) return Collections.emptyList();
@@ -665,9 +927,23 @@ public class ParserGenerator {
     ConsumeType consumeType = ConsumeType.forRule(rule);
     boolean predicateEncountered = false;
     int[] skip = {0};
+    int factoredPrefix = type == BNF_CHOICE && G.generateLeftFactoring ? getFactoredPrefixSize(rule, funcName, children) : 0;
+    int choicePartSize = type == BNF_CHOICE && factoredPrefix == 0 ? getChoicePartSize(rule, funcName, children) : 0;
     for (int i = 0, p = 0, childrenSize = children.size(); i < childrenSize; i++) {
       BnfExpression child = children.get(i);
 
+      if (factoredPrefix > 0) {
+        generateFactoredChoice(rule, funcName, children, factoredPrefix);
+        break;
+      }
+      if (choicePartSize > 0) {
+        if (i % choicePartSize == 0) {
+          String partCall = format("%s(%s, %s + 1%s)", getChoicePartName(funcName, i / choicePartSize), N.builder, N.level,
+                                   collectExtraArguments(rule, node, false));
+          out("%s%s = %s;", i > 0 ? format("if (!%s) ", N.result) : "", N.result, partCall);
+        }
+        continue;
+      }
       String nodeCall = generateNodeCall(rule, child, getNextName(funcName, i));
       if (type == BNF_CHOICE) {
         out("%s%s = %s;", i > 0 ? format("if (!%s) ", N.result) : "", N.result, nodeCall);
@@ -763,14 +1039,157 @@ public class ParserGenerator {
 
     out("return %s;", alwaysTrue ? "true" : N.result + (pinned ? format(" || %s", N.pinned) : ""));
     out("}");
-    generateNodeChildren(rule, funcName, children, visited);
+    if (factoredPrefix > 0) {
+      generateFactoredChoiceChildren(rule, funcName, children, factoredPrefix, visited);
+    }
+    else {
+      if (choicePartSize > 0) {
+        generateChoiceParts(rule, node, funcName, children, choicePartSize);
+      }
+      generateNodeChildren(rule, funcName, children, visited);
+    }
+  }
+
+  /**
+   * Returns the number of branches per helper method if the choice is too large to be JIT-compiled, 0 otherwise.
+   */
+  private int getChoicePartSize(BnfRule rule, String funcName, List<BnfExpression> children) {
+    int size = 0;
+    for (int i = 0, len = children.size(); i < len; i++) {
+      String nodeCall = generateNodeCall(rule, children.get(i), getNextName(funcName, i));
+      size += estimateBytecodeSize(format("if (!%s) %s = %s;", N.result, N.result, nodeCall));
+    }
+    return size > G.methodSizeLimit ? children.size() * (G.methodSizeLimit / 2) / size + 1 : 0;
+  }
+
+  private static String getChoicePartName(String funcName, int part) {
+    return funcName + "_part" + part + "_";
+  }
+
+  private void generateChoiceParts(BnfRule rule, BnfExpression node, String funcName, List<BnfExpression> children, int partSize) {
+    String extraArguments = collectExtraArguments(rule, node, true);
+    for (int start = 0, part = 0, size = children.size(); start < size; start += partSize, part++) {
+      newLine();
+      out("private static boolean %s(PsiBuilder %s, int %s%s) {", getChoicePartName(funcName, part), N.builder, N.level, extraArguments);
+      out("boolean %s;", N.result);
+      for (int i = start, end = Math.min(start + partSize, size); i < end; i++) {
+        String nodeCall = generateNodeCall(rule, children.get(i), getNextName(funcName, i));
+        out("%s%s = %s;", i > start ? format("if (!%s) ", N.result) : "", N.result, nodeCall);
+      }
+      out("return %s;", N.result);
+      out("}");
+    }
+  }
+
+  /**
+   * Returns the number of leading items shared by all the choice branches.
+   * Only plain sequences without pins are considered and only tokens, literals and non-external rules
+   * are shared as these are parsed in the same way no matter which branch they belong to.
+   */
+  private int getFactoredPrefixSize(BnfRule rule, String funcName, List<BnfExpression> children) {
+    if (children.size() < 2) return 0;
+    List<BnfExpression> first = null;
+    int prefix = Integer.MAX_VALUE;
+    for (int i = 0, size = children.size(); i < size; i++) {
+      BnfExpression branch = getNonTrivialNode(children.get(i));
+      if (getEffectiveType(branch) != BNF_SEQUENCE) return 0;
+      if (new PinMatcher(rule, BNF_SEQUENCE, getNextName(funcName, i)).active()) return 0;
+      List<BnfExpression> items = getChildExpressions(branch);
+      if (first == null) {
+        first = items;
+        prefix = items.size() - 1;
+        continue;
+      }
+      int common = 0;
+      while (common < prefix && common < items.size() - 1 && GrammarUtil.equalsElement(first.get(common), items.get(common))) {
+        common ++;
+      }
+      prefix = common;
+      if (prefix == 0) return 0;
+    }
+    for (int i = 0; i < prefix; i++) {
+      BnfExpression item = first.get(i);
+      if (!GrammarUtil.isOneTokenExpression(item)) return i;
+      BnfRule subRule = item instanceof BnfReferenceOrToken ? myFile.getRule(item.getText()) : null;
+      if (subRule != null && Rule.isExternal(subRule)) return i;
+    }
+    return prefix;
+  }
+
+  private void generateFactoredChoice(BnfRule rule, String funcName, List<BnfExpression> children, int prefix) {
+    myStats.list(LEFT_FACTORED_CHOICES, funcName + " (prefix " + prefix + ")");
+    String firstName = getNextName(funcName, 0);
+    List<BnfExpression> first = getChildExpressions(getNonTrivialNode(children.get(0)));
+    for (int i = 0; i < prefix; i++) {
+      String nodeCall = generateNodeCall(rule, first.get(i), getNextName(firstName, i));
+      if (i == 0) {
+        out("%s = %s;", N.result, nodeCall);
+      }
+      else {
+        out("%s = %s && %s;", N.result, N.result, nodeCall);
+      }
+    }
+    out("if (%s) {", N.result);
+    for (int i = 0, size = children.size(); i < size; i++) {
+      BnfExpression branch = children.get(i);
+      List<BnfExpression> items = getChildExpressions(getNonTrivialNode(branch));
+      String branchName = getNextName(funcName, i);
+      String nodeCall = items.size() == prefix + 1 ?
+                        generateNodeCall(rule, items.get(prefix), getNextName(branchName, prefix)) :
+                        format("%s(%s, %s + 1%s)", branchName, N.builder, N.level, collectExtraArguments(rule, branch, false));
+      out("%s%s = %s;", i > 0 ? format("if (!%s) ", N.result) : "", N.result, nodeCall);
+    }
+    out("}");
+  }
+
+  private void generateFactoredChoiceChildren(BnfRule rule, String funcName, List<BnfExpression> children, int prefix,
+                                              Set<BnfExpression> visited) {
+    String firstName = getNextName(funcName, 0);
+    List<BnfExpression> first = getChildExpressions(getNonTrivialNode(children.get(0)));
+    for (int i = 0; i < prefix; i++) {
+      generateNodeChild(rule, first.get(i), firstName, i, visited);
+    }
+    for (int i = 0, size = children.size(); i < size; i++) {
+      BnfExpression branch = children.get(i);
+      List<BnfExpression> items = getChildExpressions(getNonTrivialNode(branch));
+      String branchName = getNextName(funcName, i);
+      if (items.size() == prefix + 1) {
+        generateNodeChild(rule, items.get(prefix), branchName, prefix, visited);
+        continue;
+      }
+      List<BnfExpression> tail = items.subList(prefix, items.size());
+      newLine();
+      out("// " + StringUtil.join(tail, new Function<BnfExpression, String>() {
+        @Override
+        public String fun(BnfExpression expression) {
+          return expression.getText();
+        }
+      }, " ").replace('\n', ' '));
+      out("private static boolean %s(PsiBuilder %s, int %s%s) {", branchName, N.builder, N.level, collectExtraArguments(rule, branch, true));
+      out("if (!recursion_guard_(%s, %s, \"%s\")) return false;", N.builder, N.level, branchName);
+      out("boolean %s;", N.result);
+      out("Marker %s = enter_section_(%s);", N.marker, N.builder);
+      for (int j = prefix, len = items.size(); j < len; j++) {
+        String nodeCall = generateNodeCall(rule, items.get(j), getNextName(branchName, j));
+        if (j == prefix) {
+          out("%s = %s;", N.result, nodeCall);
+        }
+        else {
+          out("%s = %s && %s;", N.result, N.result, nodeCall);
+        }
+      }
+      out("exit_section_(%s, %s, null, %s);", N.builder, N.marker, N.result);
+      out("return %s;", N.result);
+      out("}");
+      for (int j = prefix, len = items.size(); j < len; j++) {
+        generateNodeChild(rule, items.get(j), branchName, j, visited);
+      }
+    }
   }
 
   /** @noinspection StringEquality*/
   private String generateAutoRecoverCall(BnfRule rule) {
-    BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
-    Set<BnfExpression> nextExprSet = analyzer.calcNext(rule).keySet();
-    Set<String> nextSet = analyzer.asStrings(nextExprSet);
+    Set<String> nextSet = myFirstNextTable.getNext(rule);
     List<String> tokenTypes = new ArrayList<String>(nextSet.size());
 
     for (String s : nextSet) {
@@ -799,9 +1218,8 @@ public class ParserGenerator {
   }
 
   public String generateFirstCheck(BnfRule rule, String frameName, boolean skipIfOne) {
-    if (G.generateFirstCheck <= 0) return frameName;
-    BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
-    Set<String> firstSet = analyzer.asStrings(analyzer.calcFirst(rule));
+    if (G.generateFirstCheck <= 0 && !G.generateFirstCheckSets) return frameName;
+    Set<String> firstSet = myFirstNextTable.getFirstSet(rule);
     List<String> firstElementTypes = new ArrayList<String>(firstSet.size());
     for (String s : firstSet) {
       if (myFile.getRule(s) != null) continue; // ignore left recursion
@@ -821,18 +1239,42 @@ public class ParserGenerator {
     boolean fast = consumeType == ConsumeType.FAST || consumeType == ConsumeType.SMART;
     // do not include frameName if FIRST is known and its size is 1
     boolean dropFrameName = skipIfOne && !firstElementTypes.isEmpty() && firstElementTypes.size() == 1;
-    if (!firstElementTypes.isEmpty() && firstElementTypes.size() <= G.generateFirstCheck) {
+    // a single token is always checked directly, TokenSet constants are for larger sets only
+    int directLimit = G.generateFirstCheckSets ? Math.max(G.generateFirstCheck, 1) : G.generateFirstCheck;
+    boolean useSet = G.generateFirstCheckSets && firstElementTypes.size() > directLimit;
+    if (!firstElementTypes.isEmpty() && (firstElementTypes.size() <= directLimit || useSet)) {
       StringBuilder sb = new StringBuilder("if (!");
       sb.append(fast ? "nextTokenIsFast" : "nextTokenIs").append("(").append(N.builder).append(", ");
       if (!fast && !dropFrameName) sb.append(frameName != null ? frameName : "\"\"").append(", ");
 
-      appendTokenTypes(sb, firstElementTypes);
+      if (useSet) {
+        sb.append(getFirstSetConstant(rule, firstElementTypes));
+      }
+      else {
+        appendTokenTypes(sb, firstElementTypes);
+      }
       sb.append(")) return false;");
       out(sb.toString());
     }
     return dropFrameName? null : frameName;
   }
 
+  private String getFirstSetConstant(BnfRule rule, List<String> tokenTypes) {
+    StringBuilder sb = new StringBuilder();
+    appendTokenTypes(sb, tokenTypes);
+    String key = sb.toString();
+    String name = myFirstSets.get(key);
+    if (name == null) {
+      String base = StringUtil.toUpperCase(rule.getName()) + "_FIRST";
+      name = base + "_";
+      for (int i = 1; myFirstSets.containsValue(name); i++) {
+        name = base + i + "_";
+      }
+      myFirstSets.put(key, name);
+    }
+    return name;
+  }
+
   void generateNodeChildren(BnfRule rule, String funcName, List<BnfExpression> children, Set<BnfExpression> visited) {
     for (int i = 0, len = children.size(); i < len; i++) {
       generateNodeChild(rule, children.get(i), funcName, i, visited);
@@ -896,6 +1338,24 @@ public class ParserGenerator {
     return getTokenElementType(first);
   }
 
+  /**
+   * Returns token types of a single token or a choice of tokens, null otherwise.
+   */
+  @Nullable
+  List<String> getTokenElementTypes(BnfExpression expression) {
+    BnfExpression node = getNonTrivialNode(expression);
+    List<BnfExpression> items = getEffectiveType(node) == BNF_CHOICE ? getChildExpressions(node) : Collections.singletonList(node);
+    List<String> result = ContainerUtil.newArrayListWithCapacity(items.size());
+    for (BnfExpression item : items) {
+      if (!(item instanceof BnfReferenceOrToken || item instanceof BnfStringLiteralExpression)) return null;
+      if (myFile.getRule(item.getText()) != null) return null;
+      String type = firstToElementType(item.getText());
+      if (type == null) return null;
+      result.add(type);
+    }
+    return result;
+  }
+
   @Nullable
   private String getTokenName(String value) {
     String existing = mySimpleTokens.get(value);
@@ -1250,6 +1710,45 @@ public class ParserGenerator {
 
 
   /*PSI******************************************************************/
+  private String getPsiInputHash(BnfRule rule, String attributesText) {
+    StringBuilder sb = new StringBuilder(rule.getText());
+    String psiImplUtilClass = getRootAttribute(myFile, KnownAttribute.PSI_IMPL_UTIL_CLASS);
+    JavaHelper javaHelper = JavaHelper.getJavaHelper(myFile);
+    for (RuleMethodsHelper.MethodInfo methodInfo : myRulesMethodsHelper.getFor(rule)) {
+      appendMethodInfo(sb, methodInfo);
+      if (methodInfo.type == 3) {
+        // user accessors depend on the methods of every rule along the path
+        BnfRule targetRule = rule;
+        for (String pathElement : methodInfo.path.split("/")) {
+          int indexStart = pathElement.indexOf('[');
+          String item = (indexStart > 0 ? pathElement.substring(0, indexStart) : pathElement).trim();
+          RuleMethodsHelper.MethodInfo targetInfo = targetRule == null || item.isEmpty() ? null :
+                                                    myRulesMethodsHelper.getMethodInfo(targetRule, item);
+          if (targetInfo == null) break;
+          appendMethodInfo(sb, targetInfo);
+          targetRule = targetInfo.rule;
+        }
+      }
+      else if (methodInfo.type == 4) {
+        // user methods depend on the mixin and the PSI implementation util classes
+        String mixinClass = getAttribute(rule, KnownAttribute.MIXIN);
+        List<NavigatablePsiElement> methods = ContainerUtil.newArrayList();
+        methods.addAll(javaHelper.findClassMethods(mixinClass, false, methodInfo.name, -1));
+        methods.addAll(findRuleImplMethods(javaHelper, psiImplUtilClass, methodInfo.name, rule));
+        for (NavigatablePsiElement method : methods) {
+          sb.append("\n  ").append(javaHelper.getMethodTypes(method)).append(javaHelper.getAnnotations(method));
+        }
+      }
+    }
+    return GenerationManifest.hash(attributesText, sb);
+  }
+
+  private void appendMethodInfo(StringBuilder sb, RuleMethodsHelper.MethodInfo methodInfo) {
+    sb.append("\n").append(methodInfo.type).append(" ").append(methodInfo.name).append(" ").append(methodInfo.path);
+    sb.append(" ").append(methodInfo.cardinality);
+    if (methodInfo.rule != null) sb.append(" ").append(getAccessorType(methodInfo.rule));
+  }
+
   private void generatePsiIntf(BnfRule rule,
                                String psiClass,
                                Collection<String> psiSupers) {
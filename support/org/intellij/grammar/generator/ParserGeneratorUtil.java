@@ -15,6 +15,7 @@
  */
 package org.intellij.grammar.generator;
 
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.MessageType;
@@ -28,6 +29,7 @@ import com.intellij.psi.impl.source.tree.LeafPsiElement;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.ObjectUtils;
+import com.intellij.util.Processor;
 import com.intellij.util.ThreeState;
 import com.intellij.util.containers.ContainerUtil;
 import gnu.trove.TObjectHashingStrategy;
@@ -52,7 +54,9 @@ import static org.intellij.grammar.psi.BnfTypes.BNF_SEQUENCE;
  */
 public class ParserGeneratorUtil {
   private static final Object NULL = new Object();
+  private static final int PARALLEL_THRESHOLD = 32;
   private static final BnfExpression NULL_ATTR = new FakeBnfExpression("NULL");
+  private static final ThreadLocal<StringBuilder> ourWarningsBuffer = new ThreadLocal<StringBuilder>();
 
   enum ConsumeType {
     DEFAULT, FAST, SMART;
@@ -242,6 +246,29 @@ public class ParserGeneratorUtil {
     return funcName + "_" + i;
   }
 
+  /**
+   * Roughly estimates bytecode size of a generated statement: calls, argument loads, branches and stores.
+   */
+  public static int estimateBytecodeSize(@NotNull String statement) {
+    int size = 1;
+    for (int i = 0, len = statement.length(); i < len; i++) {
+      char c = statement.charAt(i);
+      if (c == '(') size += 3;
+      else if (c == ',') size += 2;
+      else if (c == '&' || c == '|' || c == '!' || c == '?') size += 2;
+      else if (c == '=') size += 1;
+    }
+    return size;
+  }
+
+  public static int estimateMethodCount(@NotNull BnfRule rule) {
+    int count = 1;
+    for (BnfExpression expression : PsiTreeUtil.findChildrenOfType(rule.getExpression(), BnfExpression.class)) {
+      if (!GrammarUtil.isAtomicExpression(expression)) count++;
+    }
+    return count;
+  }
+
   public static String toIdentifier(@NotNull String text, @NotNull String prefix) {
     StringBuilder sb = new StringBuilder(prefix);
     for (String s : text.split("_|-")) {
@@ -469,8 +496,56 @@ public class ParserGeneratorUtil {
     return result;
   }
 
+  /**
+   * Processes the items on the shared job pool in read action if the caller holds one.
+   * Short lists are processed sequentially in the calling thread.
+   * Warnings buffer of the calling thread is shared with the pool threads.
+   */
+  public static <T> void processConcurrently(@NotNull List<T> items, @NotNull final Processor<? super T> processor) {
+    if (items.size() < PARALLEL_THRESHOLD || ApplicationManager.getApplication() == null) {
+      for (T item : items) {
+        if (!processor.process(item)) return;
+      }
+      return;
+    }
+    final StringBuilder buffer = ourWarningsBuffer.get();
+    Processor<? super T> wrapped = buffer == null ? processor : new Processor<T>() {
+      @Override
+      public boolean process(T t) {
+        StringBuilder prev = ourWarningsBuffer.get();
+        ourWarningsBuffer.set(buffer);
+        try {
+          return processor.process(t);
+        }
+        finally {
+          setWarningsBuffer(prev);
+        }
+      }
+    };
+    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(items, null, false, wrapped);
+  }
+
+  /**
+   * Makes {@link #addWarning(Project, String)} collect warnings of the current thread into the buffer,
+   * so that concurrent command-line tasks report them together with their results. Null restores the default.
+   */
+  public static void setWarningsBuffer(@Nullable StringBuilder buffer) {
+    if (buffer == null) {
+      ourWarningsBuffer.remove();
+    }
+    else {
+      ourWarningsBuffer.set(buffer);
+    }
+  }
+
   public static void addWarning(Project project, String text) {
-    if (ApplicationManager.getApplication().isUnitTestMode()) {
+    StringBuilder buffer = ourWarningsBuffer.get();
+    if (buffer != null) {
+      synchronized (buffer) {
+        buffer.append(text).append("\n");
+      }
+    }
+    else if (ApplicationManager.getApplication().isUnitTestMode()) {
       //noinspection UseOfSystemOutOrSystemErr
       System.out.println(text);
     }
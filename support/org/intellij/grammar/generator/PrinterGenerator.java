@@ -103,7 +103,7 @@ public class PrinterGenerator {
     myFile = f;
     myOutputPath = outputPath;
     myGraphHelper = RuleGraphHelper.getCached(myFile);
-    myExpressionHelper = new ExpressionHelper(myFile, myGraphHelper, true);
+    myExpressionHelper = ExpressionHelper.getCached(myFile);
     mySimpleTokens = ContainerUtil.newLinkedHashMap(RuleGraphHelper.getTokenMap(myFile));
     myGenOptions = new GenOptions(myFile);
     myRuleMethodsHelper = new RuleMethodsHelper(myGraphHelper, myExpressionHelper, mySimpleTokens, myGenOptions);
@@ -21,12 +21,17 @@ import com.intellij.psi.PsiElement;
 import com.intellij.psi.impl.source.tree.LeafPsiElement;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.util.*;
+import com.intellij.reference.SoftReference;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.ObjectUtils;
+import com.intellij.util.Processor;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.MultiMap;
 import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TObjectHashingStrategy;
+import gnu.trove.TObjectIntHashMap;
 import org.intellij.grammar.KnownAttribute;
 import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
 import org.intellij.grammar.psi.*;
@@ -63,14 +68,31 @@ public class RuleGraphHelper {
       return CANONICAL.equals(e1, e2);
     }
   };
+  private static final Cardinality[] CARDINALITIES = Cardinality.values();
+  private static final int[] EMPTY_IDS = new int[0];
+
   private final BnfFile myFile;
   private final MultiMap<BnfRule, BnfRule> myRuleExtendsMap;
-  private final MultiMap<BnfRule, BnfRule> myRulesGraph = newMultiMap();
-  private final Map<BnfRule, Map<PsiElement, Cardinality>> myRuleContentsMap = ContainerUtil.newTroveMap();
   private final MultiMap<BnfRule, PsiElement> myRulesCollapseMap = newMultiMap();
-  private final Set<BnfRule> myRulesWithTokens = ContainerUtil.newTroveSet();
+  private final MultiMap<BnfRule, PsiElement> myEagerCollapseMap = newMultiMap();
   private final Map<String, PsiElement> myExternalElements = ContainerUtil.newTroveMap();
 
+  // incremental update inputs: a rule is reused if its text and the grammar-wide inputs are unchanged
+  private final String[] myRuleNames;
+  private final String[] myRuleTexts;
+  private final String myAttributesText;
+
+  // dense rule ids: adjacency arrays, bit sets and packed contents maps are indexed by them
+  private final BnfRule[] myRules;
+  private final TObjectIntHashMap<BnfRule> myRuleIds = new TObjectIntHashMap<BnfRule>();
+  private final int[][] mySubRules;
+  private final int[][] myExtendsRules;
+  private final int[][] mySuperRules;
+  private final BitSet myRulesWithTokens = new BitSet();
+  private final BitSet myExtendsMembers = new BitSet();
+  private final RuleContents[] myRuleContents;
+  private int myRecomputedCount;
+
   private static final IElementType EXTERNAL_TYPE = new FakeElementType("EXTERNAL_TYPE", Language.ANY);
   private static final IElementType MARKER_TYPE = new FakeElementType("MARKER_TYPE", Language.ANY);
   private static final PsiElement LEFT_MARKER = new FakeBnfExpression(MARKER_TYPE, "LEFT_MARKER");
@@ -218,10 +240,15 @@ public class RuleGraphHelper {
     CachedValue<RuleGraphHelper> value = file.getUserData(RULE_GRAPH_HELPER_KEY);
     if (value == null) {
       file.putUserData(RULE_GRAPH_HELPER_KEY, value = CachedValuesManager.getManager(file.getProject()).createCachedValue(new CachedValueProvider<RuleGraphHelper>() {
+        // only the state the next update needs is kept and it can be collected under memory pressure
+        volatile SoftReference<Snapshot> myLast;
+
         @Nullable
         @Override
         public Result<RuleGraphHelper> compute() {
-          return new Result<RuleGraphHelper>(new RuleGraphHelper(file), file);
+          RuleGraphHelper helper = new RuleGraphHelper(file, buildExtendsMap(file), SoftReference.dereference(myLast));
+          myLast = new SoftReference<Snapshot>(new Snapshot(helper));
+          return new Result<RuleGraphHelper>(helper, file);
         }
       }, false));
     }
@@ -232,13 +259,199 @@ public class RuleGraphHelper {
     this(file, buildExtendsMap(file));
   }
 
+  /**
+   * Recomputes only the rules affected by changes since the previous helper for the same file.
+   * Falls back to a full rebuild if rules were added, removed or renamed, or global attributes or the extends map changed.
+   */
+  public RuleGraphHelper(BnfFile file, @Nullable RuleGraphHelper previous) {
+    this(file, buildExtendsMap(file), previous == null ? null : new Snapshot(previous));
+  }
+
   public RuleGraphHelper(BnfFile file, MultiMap<BnfRule, BnfRule> ruleExtendsMap) {
+    this(file, ruleExtendsMap, null);
+  }
+
+  private RuleGraphHelper(BnfFile file, MultiMap<BnfRule, BnfRule> ruleExtendsMap, @Nullable Snapshot previous) {
     myFile = file;
     myRuleExtendsMap = ruleExtendsMap;
 
-    buildRulesGraph();
+    List<BnfRule> rules = file.getRules();
+    int size = rules.size();
+    myRules = rules.toArray(new BnfRule[size]);
+    myRuleNames = new String[size];
+    myRuleTexts = new String[size];
+    for (int i = 0; i < size; i++) {
+      myRuleIds.put(myRules[i], i);
+      myRuleNames[i] = myRules[i].getName();
+      myRuleTexts[i] = myRules[i].getText();
+    }
+    StringBuilder attributesText = new StringBuilder();
+    for (BnfAttrs attrs : file.getAttributes()) {
+      attributesText.append(attrs.getText()).append("\n");
+    }
+    myAttributesText = attributesText.toString();
+    mySubRules = new int[size][];
+    myExtendsRules = new int[size][];
+    mySuperRules = new int[size][];
+    myRuleContents = new RuleContents[size];
+    buildExtendsArrays();
+
+    if (previous == null || !canUpdateFrom(previous) || !updateFrom(previous)) {
+      buildRulesGraph(null, null);
+      buildCollapseMap();
+      buildContentsMap(null);
+      myRecomputedCount = size;
+    }
+  }
+
+  /**
+   * @return number of rules whose contents were computed by this helper instead of being reused
+   */
+  public int getRecomputedCount() {
+    return myRecomputedCount;
+  }
+
+  private boolean canUpdateFrom(@NotNull Snapshot previous) {
+    if (previous.file != myFile ||
+        !Arrays.equals(previous.rules, myRules) ||
+        !Arrays.equals(previous.ruleNames, myRuleNames) ||
+        !previous.attributesText.equals(myAttributesText) ||
+        !Arrays.deepEquals(previous.extendsRules, myExtendsRules)) {
+      return false;
+    }
+    for (BnfRule rule : myRules) {
+      if (!rule.isValid()) return false;
+    }
+    return true;
+  }
+
+  private boolean updateFrom(@NotNull Snapshot previous) {
+    myExternalElements.putAll(previous.externalElements);
+
+    // rules to analyze again: edited ones, ones with stale PSI and left rules that depend on the whole grammar
+    BitSet changed = new BitSet();
+    for (int i = 0; i < myRules.length; i++) {
+      BnfRule rule = myRules[i];
+      if (!myRuleTexts[i].equals(previous.ruleTexts[i]) ||
+          Rule.isLeft(rule) ||
+          !isValid(previous.ruleContents[i])) {
+        changed.set(i);
+      }
+    }
+    buildRulesGraph(previous, changed);
     buildCollapseMap();
-    buildContentsMap();
+    for (int i = 0; i < myRules.length; i++) {
+      if (!myEagerCollapseMap.get(myRules[i]).equals(previous.eagerCollapseMap.get(myRules[i]))) {
+        changed.set(i);
+      }
+    }
+
+    // edits show up in direct dependents, private rules are inlined and propagate further
+    int[][] referrers = getReferrers();
+    BitSet dirty = (BitSet)changed.clone();
+    LinkedList<Integer> queue = ContainerUtil.newLinkedList();
+    for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+      queue.add(i);
+    }
+    while (!queue.isEmpty()) {
+      int id = queue.removeFirst();
+      if (!changed.get(id) && !Rule.isPrivate(myRules[id])) continue;
+      for (int r : referrers[id]) {
+        if (dirty.get(r)) continue;
+        dirty.set(r);
+        queue.add(r);
+      }
+    }
+
+    for (int i = 0; i < myRules.length; i++) {
+      if (dirty.get(i)) continue;
+      myRuleContents[i] = previous.ruleContents[i];
+      for (PsiElement t : previous.rulesCollapseMap.get(myRules[i])) {
+        myRulesCollapseMap.putValue(myRules[i], t);
+      }
+    }
+    buildContentsMap(dirty);
+    myRecomputedCount = dirty.cardinality();
+
+    // collapse candidates are consulted when rules are referenced, reused referrers must not see a difference
+    for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+      if (myRulesCollapseMap.get(myRules[i]).equals(previous.rulesCollapseMap.get(myRules[i]))) continue;
+      for (int r : referrers[i]) {
+        if (!dirty.get(r)) {
+          Arrays.fill(myRuleContents, null);
+          myRulesCollapseMap.clear();
+          myEagerCollapseMap.clear();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean isValid(@Nullable RuleContents contents) {
+    if (contents == null) return true;
+    for (PsiElement key : contents.keys) {
+      if (!isExternalPsi(key) && !key.isValid()) return false;
+    }
+    return true;
+  }
+
+  private int[][] getReferrers() {
+    TIntArrayList[] lists = new TIntArrayList[myRules.length];
+    for (int i = 0; i < myRules.length; i++) {
+      if (mySubRules[i] == null) continue;
+      for (int r : mySubRules[i]) {
+        if (lists[r] == null) lists[r] = new TIntArrayList();
+        lists[r].add(i);
+      }
+    }
+    int[][] result = new int[myRules.length][];
+    for (int i = 0; i < lists.length; i++) {
+      result[i] = lists[i] == null ? EMPTY_IDS : lists[i].toNativeArray();
+    }
+    return result;
+  }
+
+  /**
+   * @return dense id of the rule in the file rule order, -1 for unknown rules
+   */
+  public int getRuleId(BnfRule rule) {
+    return rule != null && myRuleIds.containsKey(rule) ? myRuleIds.get(rule) : -1;
+  }
+
+  private boolean isExtendsMember(BnfRule rule) {
+    int id = getRuleId(rule);
+    return id >= 0 && myExtendsMembers.get(id);
+  }
+
+  private Collection<BnfRule> getRules(int[] ids) {
+    return ids == null || ids.length == 0 ? Collections.<BnfRule>emptyList() : new RuleList(ids);
+  }
+
+  private void buildExtendsArrays() {
+    MultiMap<Integer, Integer> supers = newMultiMap();
+    for (Map.Entry<BnfRule, Collection<BnfRule>> entry : myRuleExtendsMap.entrySet()) {
+      int superId = getRuleId(entry.getKey());
+      if (superId < 0) continue;
+      myExtendsRules[superId] = toIds(entry.getValue());
+      for (int id : myExtendsRules[superId]) {
+        myExtendsMembers.set(id);
+        supers.putValue(id, superId);
+      }
+    }
+    for (Integer id : supers.keySet()) {
+      mySuperRules[id] = ArrayUtil.toIntArray(ContainerUtil.newArrayList(supers.get(id)));
+    }
+  }
+
+  private int[] toIds(Collection<BnfRule> rules) {
+    if (rules.isEmpty()) return EMPTY_IDS;
+    TIntArrayList ids = new TIntArrayList(rules.size());
+    for (BnfRule rule : rules) {
+      int id = getRuleId(rule);
+      if (id >= 0) ids.add(id);
+    }
+    return ids.toNativeArray();
   }
 
   public MultiMap<BnfRule, BnfRule> getRuleExtendsMap() {
@@ -250,14 +463,16 @@ public class RuleGraphHelper {
   }
 
   public boolean canCollapse(@NotNull BnfRule rule) {
-    return myRulesCollapseMap.containsKey(rule);
+    synchronized (myRulesCollapseMap) {
+      return myRulesCollapseMap.containsKey(rule);
+    }
   }
 
   private void buildCollapseMap() {
     BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer().setPublicRuleOpaque(true).setNoParent(true);
 
     for (BnfRule rule : myFile.getRules()) {
-      if (!myRuleExtendsMap.containsScalarValue(rule)) continue;
+      if (!isExtendsMember(rule)) continue;
       Set<BnfExpression> first = analyzer.calcFirst(rule);
       for (BnfExpression expression : first) {
         BnfRule r = expression instanceof BnfReferenceOrToken ? myFile.getRule(expression.getText()) : null;
@@ -273,21 +488,76 @@ public class RuleGraphHelper {
       }
       if (myRulesCollapseMap.containsKey(rule)) {
         myRulesCollapseMap.putValue(rule, rule);
+        myEagerCollapseMap.putValues(rule, myRulesCollapseMap.get(rule));
       }
     }
   }
 
-  private void buildContentsMap() {
-    List<BnfRule> rules = topoSort(myFile.getRules(), this);
-    Set<Object> visited = ContainerUtil.newLinkedHashSet();
-    for (BnfRule rule : rules) {
-      collectMembers(rule, visited);
-      visited.clear();
+  private void buildContentsMap(@Nullable BitSet dirty) {
+    List<BnfRule> rules = ContainerUtil.newArrayList();
+    for (BnfRule rule : topoSort(myFile.getRules(), this)) {
+      if (dirty == null || dirty.get(getRuleId(rule))) rules.add(rule);
+    }
+    for (List<BnfRule> level : getContentsLevels(rules)) {
+      processConcurrently(level, new Processor<BnfRule>() {
+        @Override
+        public boolean process(BnfRule rule) {
+          collectMembers(rule, ContainerUtil.newLinkedHashSet());
+          return true;
+        }
+      });
+    }
+  }
+
+  /**
+   * Splits topologically sorted rules into levels that can be processed concurrently
+   * with the same results as a sequential pass.
+   * A rule observes its sub-rules and everything inlined via private rules. Observed rules that come earlier
+   * must be complete and the ones that come later must not be started, so they get lower and higher levels respectively.
+   */
+  private List<List<BnfRule>> getContentsLevels(List<BnfRule> rules) {
+    int[] positions = new int[myRules.length];
+    Arrays.fill(positions, -1);
+    for (int i = 0; i < rules.size(); i++) {
+      positions[getRuleId(rules.get(i))] = i;
     }
+    int[] levels = new int[rules.size()];
+    List<List<BnfRule>> result = ContainerUtil.newArrayList();
+    for (int i = 0; i < rules.size(); i++) {
+      BitSet observed = getObservedRules(getRuleId(rules.get(i)));
+      for (int id = observed.nextSetBit(0); id >= 0; id = observed.nextSetBit(id + 1)) {
+        int pos = positions[id];
+        if (pos >= 0 && pos < i) levels[i] = Math.max(levels[i], levels[pos] + 1);
+      }
+      for (int id = observed.nextSetBit(0); id >= 0; id = observed.nextSetBit(id + 1)) {
+        int pos = positions[id];
+        if (pos > i) levels[pos] = Math.max(levels[pos], levels[i] + 1);
+      }
+      while (result.size() <= levels[i]) result.add(ContainerUtil.<BnfRule>newArrayList());
+      result.get(levels[i]).add(rules.get(i));
+    }
+    return result;
+  }
+
+  private BitSet getObservedRules(int ruleId) {
+    BitSet result = new BitSet();
+    LinkedList<Integer> queue = ContainerUtil.newLinkedList();
+    queue.add(ruleId);
+    while (!queue.isEmpty()) {
+      int[] subRules = mySubRules[queue.removeFirst()];
+      if (subRules == null) continue;
+      for (int id : subRules) {
+        if (result.get(id)) continue;
+        result.set(id);
+        if (Rule.isPrivate(myRules[id])) queue.add(id);
+      }
+    }
+    return result;
   }
 
   private Map<PsiElement, Cardinality> collectMembers(@NotNull BnfRule rule, Set<Object> visited) {
-    Map<PsiElement, Cardinality> result = myRuleContentsMap.get(rule);
+    int id = getRuleId(rule);
+    Map<PsiElement, Cardinality> result = id < 0 ? null : myRuleContents[id];
     if (result != null) return result;
 
     BnfExpression expression = rule.getExpression();
@@ -296,29 +566,40 @@ public class RuleGraphHelper {
       return result;
     }
     result.remove(NOT_EMPTY_MARKER); // todo private rules should retain this
-    myRuleContentsMap.put(rule, result);
+    if (id >= 0) myRuleContents[id] = new RuleContents(result);
     return result;
   }
 
   @Nullable
   private BnfRule getCommonSuperRule(BnfRule r1, BnfRule r2) {
+    int id1 = getRuleId(r1), id2 = getRuleId(r2);
+    int[] supers1 = id1 < 0 ? null : mySuperRules[id1];
+    int[] supers2 = id2 < 0 ? null : mySuperRules[id2];
+    if (supers1 == null || supers2 == null) return null;
     int count = Integer.MAX_VALUE;
     BnfRule result = null;
-    for (BnfRule superRule : myRuleExtendsMap.keySet()) {
-      Collection<BnfRule> set = myRuleExtendsMap.get(superRule);
-      if (set.contains(r1) && set.contains(r2)) {
-        if (count > set.size()) {
-          count = set.size();
-          result = superRule;
-        }
+    // both lists follow the extends map order, the first smallest common super wins as before
+    for (int superId : supers1) {
+      if (ArrayUtil.indexOf(supers2, superId) < 0) continue;
+      int size = myExtendsRules[superId].length;
+      if (count > size) {
+        count = size;
+        result = myRules[superId];
       }
     }
     return result;
   }
 
-  private void buildRulesGraph() {
+  private void buildRulesGraph(@Nullable Snapshot previous, @Nullable BitSet changed) {
+    MultiMap<BnfRule, BnfRule> rulesGraph = newMultiMap();
     LinkedList<BnfExpression> deque = ContainerUtil.newLinkedList();
     for (BnfRule rule : myFile.getRules()) {
+      int id = getRuleId(rule);
+      if (previous != null && changed != null && !changed.get(id)) {
+        mySubRules[id] = previous.subRules[id];
+        myRulesWithTokens.set(id, previous.rulesWithTokens.get(id));
+        continue;
+      }
       deque.addFirst(rule.getExpression());
       while (!deque.isEmpty()) {
         BnfExpression cur = deque.removeFirst();
@@ -331,10 +612,10 @@ public class RuleGraphHelper {
             null;
           BnfRule r = ruleRef != null ? ruleRef.resolveRule() : null;
           if (r != null) {
-            myRulesGraph.putValue(rule, r);
+            rulesGraph.putValue(rule, r);
           }
           else if (e instanceof BnfReferenceOrToken || e instanceof BnfStringLiteralExpression) {
-            myRulesWithTokens.add(rule);
+            myRulesWithTokens.set(id);
           }
           else {
             listIterator.add((BnfExpression)e);
@@ -345,27 +626,34 @@ public class RuleGraphHelper {
     for (BnfRule rule : myFile.getRules()) {
       if (Rule.isLeft(rule) && !Rule.isPrivate(rule) && !Rule.isInner(rule)) {
         for (BnfRule r : getRulesToTheLeft(rule).keySet()) {
-          myRulesGraph.putValue(rule, r);
+          rulesGraph.putValue(rule, r);
         }
       }
     }
+    for (BnfRule rule : rulesGraph.keySet()) {
+      mySubRules[getRuleId(rule)] = toIds(rulesGraph.get(rule));
+    }
   }
 
   public Collection<BnfRule> getExtendsRules(BnfRule rule) {
-    return myRuleExtendsMap.get(rule);
+    int id = getRuleId(rule);
+    return id < 0 ? Collections.<BnfRule>emptyList() : getRules(myExtendsRules[id]);
   }
 
   public boolean containsTokens(BnfRule rule) {
-    return myRulesWithTokens.contains(rule);
+    int id = getRuleId(rule);
+    return id >= 0 && myRulesWithTokens.get(id);
   }
 
   public Collection<BnfRule> getSubRules(BnfRule rule) {
-    return myRulesGraph.get(rule);
+    int id = getRuleId(rule);
+    return id < 0 ? Collections.<BnfRule>emptyList() : getRules(mySubRules[id]);
   }
 
   @NotNull
   public Map<PsiElement, Cardinality> getFor(BnfRule rule) {
-    Map<PsiElement, Cardinality> map = myRuleContentsMap.get(rule); // null for duplicate
+    int id = getRuleId(rule);
+    Map<PsiElement, Cardinality> map = id < 0 ? null : myRuleContents[id]; // null for duplicate
     return map == null ? Collections.<PsiElement, Cardinality>emptyMap() : map;
   }
 
@@ -639,16 +927,18 @@ public class RuleGraphHelper {
   }
 
   private boolean canCollapseBy(BnfRule rule, PsiElement t) {
-    if (myRulesCollapseMap.get(rule).contains(t)) return true;
-    if (rule == t || t instanceof BnfRule && getCommonSuperRule(rule, (BnfRule)t) != null) {
-      myRulesCollapseMap.putValue(rule, t);
-      return true;
-    }
-    else if (isExternalPsi(t) && myRuleExtendsMap.containsScalarValue(rule)) {
-      myRulesCollapseMap.putValue(rule, rule);
-      return true;
+    synchronized (myRulesCollapseMap) {
+      if (myRulesCollapseMap.get(rule).contains(t)) return true;
+      if (rule == t || t instanceof BnfRule && getCommonSuperRule(rule, (BnfRule)t) != null) {
+        myRulesCollapseMap.putValue(rule, t);
+        return true;
+      }
+      else if (isExternalPsi(t) && isExtendsMember(rule)) {
+        myRulesCollapseMap.putValue(rule, rule);
+        return true;
+      }
+      return false;
     }
-    return false;
   }
 
   private static <V> Map<PsiElement, V> psiMap(PsiElement k, V v) {
@@ -708,7 +998,11 @@ public class RuleGraphHelper {
       BnfRule rule = e.getKey();
       e.setValue(getSynonymTargetOrSelf(rule));
       hasSynonyms |= rule != e.getValue();
-      for (PsiElement r : myRulesCollapseMap.get(rule)) {
+      List<PsiElement> collapseTargets;
+      synchronized (myRulesCollapseMap) {
+        collapseTargets = ContainerUtil.newArrayList(myRulesCollapseMap.get(rule));
+      }
+      for (PsiElement r : collapseTargets) {
         if (r instanceof BnfRule && !rulesAndAlts.containsKey(r)) {
           rulesAndAlts.put((BnfRule)r, (BnfRule)r);
         }
@@ -838,15 +1132,202 @@ public class RuleGraphHelper {
 
   @NotNull
   private PsiElement newExternalPsi(String name) {
-    PsiElement e = myExternalElements.get(name);
-    if (e == null) {
-      myExternalElements.put(name, e = new FakeBnfExpression(EXTERNAL_TYPE, name));
+    synchronized (myExternalElements) {
+      PsiElement e = myExternalElements.get(name);
+      if (e == null) {
+        myExternalElements.put(name, e = new FakeBnfExpression(EXTERNAL_TYPE, name));
+      }
+      return e;
     }
-    return e;
   }
 
   private static boolean isExternalPsi(PsiElement t) {
     return t instanceof LeafPsiElement && ((LeafPsiElement)t).getElementType() == EXTERNAL_TYPE;
   }
 
+  private class RuleList extends AbstractList<BnfRule> implements RandomAccess {
+    final int[] ids;
+
+    RuleList(int[] ids) {
+      this.ids = ids;
+    }
+
+    @Override
+    public BnfRule get(int index) {
+      return myRules[ids[index]];
+    }
+
+    @Override
+    public int size() {
+      return ids.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof BnfRule && ArrayUtil.indexOf(ids, getRuleId((BnfRule)o)) >= 0;
+    }
+  }
+
+  /**
+   * State of a helper that the next helper for the same file starts from.
+   * Everything is copied as the helper may still update its collapse and contents maps lazily.
+   */
+  private static class Snapshot {
+    final BnfFile file;
+    final BnfRule[] rules;
+    final String[] ruleNames;
+    final String[] ruleTexts;
+    final String attributesText;
+    final int[][] extendsRules;
+    final int[][] subRules;
+    final BitSet rulesWithTokens;
+    final RuleContents[] ruleContents;
+    final MultiMap<BnfRule, PsiElement> rulesCollapseMap = newMultiMap();
+    final MultiMap<BnfRule, PsiElement> eagerCollapseMap = newMultiMap();
+    final Map<String, PsiElement> externalElements;
+
+    Snapshot(@NotNull RuleGraphHelper helper) {
+      file = helper.myFile;
+      rules = helper.myRules;
+      ruleNames = helper.myRuleNames;
+      ruleTexts = helper.myRuleTexts;
+      attributesText = helper.myAttributesText;
+      extendsRules = helper.myExtendsRules;
+      subRules = helper.mySubRules.clone();
+      rulesWithTokens = (BitSet)helper.myRulesWithTokens.clone();
+      ruleContents = helper.myRuleContents.clone();
+      synchronized (helper.myRulesCollapseMap) {
+        for (Map.Entry<BnfRule, Collection<PsiElement>> e : helper.myRulesCollapseMap.entrySet()) {
+          rulesCollapseMap.putValues(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<BnfRule, Collection<PsiElement>> e : helper.myEagerCollapseMap.entrySet()) {
+          eagerCollapseMap.putValues(e.getKey(), e.getValue());
+        }
+      }
+      synchronized (helper.myExternalElements) {
+        externalElements = ContainerUtil.newTroveMap();
+        externalElements.putAll(helper.myExternalElements);
+      }
+    }
+  }
+
+  /**
+   * Immutable rule contents: keys in the original iteration order, packed cardinalities and
+   * cached {@link #CARDINALITY_HASHING_STRATEGY} hash codes for lookups.
+   */
+  private static class RuleContents extends AbstractMap<PsiElement, Cardinality> {
+    final PsiElement[] keys;
+    final byte[] cardinalities;
+    final int[] hashes;
+    // open-addressing index: key index + 1 per slot, 0 is a free slot
+    final int[] slots;
+
+    RuleContents(Map<PsiElement, Cardinality> map) {
+      int size = map.size();
+      keys = new PsiElement[size];
+      cardinalities = new byte[size];
+      hashes = new int[size];
+      slots = new int[Integer.highestOneBit(Math.max(size, 1)) << 2];
+      int i = 0;
+      for (Map.Entry<PsiElement, Cardinality> entry : map.entrySet()) {
+        keys[i] = entry.getKey();
+        cardinalities[i] = (byte)entry.getValue().ordinal();
+        hashes[i] = CARDINALITY_HASHING_STRATEGY.computeHashCode(entry.getKey());
+        int slot = slotOf(hashes[i]);
+        while (slots[slot] != 0) slot = (slot + 1) & (slots.length - 1);
+        slots[slot] = ++i;
+      }
+    }
+
+    private int slotOf(int hash) {
+      int h = hash * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & (slots.length - 1);
+    }
+
+    int indexOf(Object o) {
+      if (!(o instanceof PsiElement) || keys.length == 0) return -1;
+      PsiElement e = (PsiElement)o;
+      int hash = CARDINALITY_HASHING_STRATEGY.computeHashCode(e);
+      for (int slot = slotOf(hash); slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+        int i = slots[slot] - 1;
+        if (hashes[i] == hash && CARDINALITY_HASHING_STRATEGY.equals(keys[i], e)) return i;
+      }
+      return -1;
+    }
+
+    @Override
+    public int size() {
+      return keys.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Cardinality get(Object key) {
+      int i = indexOf(key);
+      return i < 0 ? null : CARDINALITIES[cardinalities[i]];
+    }
+
+    @NotNull
+    @Override
+    public Set<PsiElement> keySet() {
+      return new AbstractSet<PsiElement>() {
+        @Override
+        public Iterator<PsiElement> iterator() {
+          return Arrays.asList(keys).iterator();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+          return indexOf(o) >= 0;
+        }
+
+        @Override
+        public int size() {
+          return keys.length;
+        }
+      };
+    }
+
+    @NotNull
+    @Override
+    public Set<Entry<PsiElement, Cardinality>> entrySet() {
+      return new AbstractSet<Entry<PsiElement, Cardinality>>() {
+        @Override
+        public Iterator<Entry<PsiElement, Cardinality>> iterator() {
+          return new Iterator<Entry<PsiElement, Cardinality>>() {
+            int index;
+
+            @Override
+            public boolean hasNext() {
+              return index < keys.length;
+            }
+
+            @Override
+            public Entry<PsiElement, Cardinality> next() {
+              if (index >= keys.length) throw new NoSuchElementException();
+              Entry<PsiElement, Cardinality> entry =
+                new SimpleImmutableEntry<PsiElement, Cardinality>(keys[index], CARDINALITIES[cardinalities[index]]);
+              index++;
+              return entry;
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return keys.length;
+        }
+      };
+    }
+  }
+
 }
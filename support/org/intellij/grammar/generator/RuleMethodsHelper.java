@@ -20,6 +20,7 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.tree.IElementType;
+import com.intellij.util.Processor;
 import com.intellij.util.containers.ContainerUtil;
 import org.intellij.grammar.KnownAttribute;
 import org.intellij.grammar.psi.BnfAttr;
@@ -60,9 +61,19 @@ public class RuleMethodsHelper {
   }
 
   public void buildMaps(Collection<BnfRule> sortedPsiRules) {
-    Map<String, String> tokensReversed = RuleGraphHelper.computeTokens(myGraphHelper.getFile()).asMap();
-    for (BnfRule rule : sortedPsiRules) {
-      calcMethods(rule, tokensReversed);
+    final Map<String, String> tokensReversed = RuleGraphHelper.computeTokens(myGraphHelper.getFile()).asMap();
+    final List<BnfRule> rules = ContainerUtil.newArrayList(sortedPsiRules);
+    // rules are independent here, results are put in the original order
+    final Map<BnfRule, Pair<Map<String, MethodInfo>, Collection<MethodInfo>>> methods = ContainerUtil.newConcurrentMap();
+    processConcurrently(rules, new Processor<BnfRule>() {
+      @Override
+      public boolean process(BnfRule rule) {
+        methods.put(rule, calcMethods(rule, tokensReversed));
+        return true;
+      }
+    });
+    for (BnfRule rule : rules) {
+      myMethods.put(rule, methods.get(rule));
     }
   }
 
@@ -80,7 +91,7 @@ public class RuleMethodsHelper {
     return myMethods.get(rule) != null;
   }
 
-  protected void calcMethods(BnfRule rule, Map<String, String> tokensReversed) {
+  protected Pair<Map<String, MethodInfo>, Collection<MethodInfo>> calcMethods(BnfRule rule, Map<String, String> tokensReversed) {
     List<MethodInfo> result = ContainerUtil.newArrayList();
 
     Map<PsiElement, RuleGraphHelper.Cardinality> cardMap = myGraphHelper.getFor(rule);
@@ -140,7 +151,7 @@ public class RuleMethodsHelper {
         result.add(new MethodInfo(4, pair.first, null, null, null)); // method mixin
       }
     }
-    myMethods.put(rule, Pair.create(basicMethods, (Collection<MethodInfo>)result));
+    return Pair.create(basicMethods, (Collection<MethodInfo>)result);
   }
 
   @Nullable
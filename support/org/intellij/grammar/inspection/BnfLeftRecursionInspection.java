@@ -18,7 +18,7 @@ package org.intellij.grammar.inspection;
 
 import com.intellij.codeInspection.*;
 import com.intellij.psi.PsiFile;
-import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import org.intellij.grammar.analysis.BnfFirstNextTable;
 import org.intellij.grammar.generator.ExpressionGeneratorHelper;
 import org.intellij.grammar.generator.ExpressionHelper;
 import org.intellij.grammar.psi.BnfFile;
@@ -61,13 +61,13 @@ public class BnfLeftRecursionInspection extends LocalInspectionTool {
     if (file instanceof BnfFile) {
       BnfFile bnfFile = (BnfFile)file;
       ExpressionHelper expressionHelper = ExpressionHelper.getCached(bnfFile);
-      BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+      BnfFirstNextTable table = BnfFirstNextTable.getCached(bnfFile);
       ArrayList<ProblemDescriptor> list = new ArrayList<ProblemDescriptor>();
       for (BnfRule rule : bnfFile.getRules()) {
         String ruleName = rule.getName();
         boolean exprParsing = ExpressionGeneratorHelper.getInfoForExpressionParsing(expressionHelper, rule) != null;
 
-        if (!exprParsing && analyzer.asStrings(analyzer.calcFirst(rule)).contains(ruleName)) {
+        if (!exprParsing && table.getFirstSet(rule).contains(ruleName)) {
           list.add(manager.createProblemDescriptor(rule.getId(), "'" + ruleName + "' employs left-recursion unsupported by generator",
                                                    isOnTheFly, LocalQuickFix.EMPTY_ARRAY, ProblemHighlightType.GENERIC_ERROR_OR_WARNING));
         }
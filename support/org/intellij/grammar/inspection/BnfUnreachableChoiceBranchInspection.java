@@ -23,10 +23,11 @@ import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiRecursiveElementWalkingVisitor;
 import com.intellij.psi.impl.source.tree.TreeUtil;
-import gnu.trove.THashSet;
 import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import org.intellij.grammar.analysis.BnfFirstNextTable;
 import org.intellij.grammar.psi.BnfChoice;
 import org.intellij.grammar.psi.BnfExpression;
+import org.intellij.grammar.psi.BnfFile;
 import org.intellij.grammar.psi.BnfTypes;
 import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.NotNull;
@@ -83,13 +84,11 @@ public class BnfUnreachableChoiceBranchInspection extends LocalInspectionTool {
   }
 
   private static void checkChoice(BnfChoice choice, ProblemsHolder problemsHolder) {
-    Set<BnfExpression> visited = new THashSet<BnfExpression>();
-    THashSet<BnfExpression> first = new THashSet<BnfExpression>();
-    BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
+    BnfFirstNextTable table = BnfFirstNextTable.getCached((BnfFile)choice.getContainingFile());
     List<BnfExpression> list = choice.getExpressionList();
     for (int i = 0, listSize = list.size() - 1; i < listSize; i++) {
       BnfExpression child = list.get(i);
-      Set<String> firstSet = analyzer.asStrings(analyzer.calcFirstInner(child, first, visited));
+      Set<String> firstSet = table.getFirstSet(child);
       if (firstSet.contains(BnfFirstNextAnalyzer.MATCHES_NOTHING)) {
         registerProblem(choice, child, "Branch is unable to match anything due to & or ! conditions", problemsHolder);
       }
@@ -97,8 +96,6 @@ public class BnfUnreachableChoiceBranchInspection extends LocalInspectionTool {
         registerProblem(choice, child, "Branch matches empty input making the rest branches unreachable", problemsHolder);
         break;
       }
-      first.clear();
-      visited.clear();
     }
   }
 
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2011-2016 Gregory Shrago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.intellij.grammar.livePreview;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.Trinity;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.CachedValue;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.ConcurrencyUtil;
+import com.intellij.util.ObjectUtils;
+import com.intellij.util.containers.ContainerUtil;
+import org.intellij.grammar.KnownAttribute;
+import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import org.intellij.grammar.analysis.BnfFirstNextTable;
+import org.intellij.grammar.generator.BnfConstants;
+import org.intellij.grammar.generator.ExpressionGeneratorHelper;
+import org.intellij.grammar.generator.ExpressionHelper;
+import org.intellij.grammar.generator.GenOptions;
+import org.intellij.grammar.generator.RuleGraphHelper;
+import org.intellij.grammar.psi.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.intellij.grammar.generator.ParserGeneratorUtil.*;
+import static org.intellij.grammar.parser.GeneratedParserUtilBase.*;
+import static org.intellij.grammar.psi.BnfTypes.*;
+
+/**
+ * Grammar compiled for {@link LivePreviewParser}.
+ * Everything that does not depend on the parsed text (node types, modifiers, pins, names, resolved rules)
+ * is computed once per grammar modification and shared by all parser runs.
+ * Nodes are created on first use and linked to the nodes they call, so a parser run follows
+ * direct references instead of looking nodes up by rule, expression and name.
+ *
+ * @author gregsh
+ */
+public class LivePreviewGraph {
+
+  // same pairs as LivePreviewParser error recovery uses
+  static final String[][] BRACES = {{"{", "}"}, {"(", ")"}, {"[", "]"}, {"<", ">"}};
+
+  private static final Key<CachedValue<LivePreviewGraph>> LIVE_PREVIEW_GRAPH_KEY = Key.create("LIVE_PREVIEW_GRAPH_KEY");
+  public static LivePreviewGraph getCached(final BnfFile file) {
+    CachedValue<LivePreviewGraph> value = file.getUserData(LIVE_PREVIEW_GRAPH_KEY);
+    if (value == null) {
+      file.putUserData(LIVE_PREVIEW_GRAPH_KEY, value = CachedValuesManager.getManager(file.getProject()).createCachedValue(new CachedValueProvider<LivePreviewGraph>() {
+        @Nullable
+        @Override
+        public Result<LivePreviewGraph> compute() {
+          return new Result<LivePreviewGraph>(new LivePreviewGraph(file), file);
+        }
+      }, false));
+    }
+    return value.getValue();
+  }
+
+  static void release(@NotNull BnfFile file) {
+    file.putUserData(LIVE_PREVIEW_GRAPH_KEY, null);
+  }
+
+  final BnfFile file;
+  final GenOptions G;
+  final BnfRule grammarRoot;
+  final RuleGraphHelper graphHelper;
+  final ExpressionHelper expressionHelper;
+  final String tokenTypeText;
+  final Map<String, String> simpleTokens;
+  // element type name -> rule, in rules order
+  final Map<String, BnfRule> ruleElementTypes = ContainerUtil.newLinkedHashMap();
+  // rule -> {open, close} brace texts of rules that can be reparsed separately
+  final Map<BnfRule, String[]> blockRules = ContainerUtil.newTroveMap();
+
+  private final ConcurrentMap<Trinity<BnfRule, BnfExpression, String>, ExpressionNode> myNodes = ContainerUtil.newConcurrentMap();
+  private final ConcurrentMap<Trinity<BnfRule, BnfExpression, String>, NodeCall> myCalls = ContainerUtil.newConcurrentMap();
+  private final ConcurrentMap<ExpressionHelper.ExpressionInfo, ExpressionRoot> myRoots = ContainerUtil.newConcurrentMap();
+  private final ConcurrentMap<BnfRule, String[]> myAutoRecoverTokens = ContainerUtil.newConcurrentMap();
+
+  private LivePreviewGraph(@NotNull BnfFile file) {
+    this.file = file;
+    G = new GenOptions(file);
+    grammarRoot = ContainerUtil.getFirstItem(file.getRules());
+    graphHelper = RuleGraphHelper.getCached(file);
+    expressionHelper = ExpressionHelper.getCached(file);
+    tokenTypeText = getRootAttribute(file, KnownAttribute.ELEMENT_TYPE_PREFIX);
+    simpleTokens = Collections.unmodifiableMap(LivePreviewLexer.collectTokenPattern2Name(file, null));
+    Set<String> sharedElementTypes = ContainerUtil.newTroveSet();
+    boolean hasUpperRules = false;
+    for (BnfRule rule : file.getRules()) {
+      hasUpperRules |= Rule.isUpper(rule);
+      String elementType = getElementType(rule, G.generateElementCase);
+      if (StringUtil.isEmpty(elementType)) continue;
+      if (ruleElementTypes.containsKey(elementType)) {
+        sharedElementTypes.add(elementType);
+        continue;
+      }
+      ruleElementTypes.put(elementType, rule);
+    }
+    // upper rules take over the parent node, so no node type is guaranteed to span its own rule
+    if (hasUpperRules) return;
+    for (Map.Entry<String, BnfRule> entry : ruleElementTypes.entrySet()) {
+      if (sharedElementTypes.contains(entry.getKey())) continue;
+      String[] braces = getBlockBraces(entry.getValue());
+      if (braces != null) blockRules.put(entry.getValue(), braces);
+    }
+  }
+
+  /**
+   * Rules like {@code rule ::= '{' ... '}'} produce nodes that start and end with a matching brace pair
+   * and do not depend on the surrounding text.
+   */
+  @Nullable
+  private String[] getBlockBraces(@NotNull BnfRule rule) {
+    if (Rule.isPrivate(rule) || Rule.isExternal(rule) || Rule.isMeta(rule) ||
+        Rule.isLeft(rule) || Rule.isInner(rule) || Rule.isUpper(rule) ||
+        rule == grammarRoot || graphHelper.canCollapse(rule)) {
+      return null;
+    }
+    BnfExpression node = getNonTrivialNode(rule.getExpression());
+    if (!(node instanceof BnfSequence)) return null;
+    List<BnfExpression> children = getChildExpressions(node);
+    if (children.size() < 2) return null;
+    String first = getExpressionTokenName(children.get(0));
+    String last = getExpressionTokenName(children.get(children.size() - 1));
+    if (first == null || last == null) return null;
+    for (String[] pair : BRACES) {
+      if (first.equals(getTokenName(pair[0])) && last.equals(getTokenName(pair[1]))) return pair;
+    }
+    return null;
+  }
+
+  @Nullable
+  private String getExpressionTokenName(@NotNull BnfExpression node) {
+    if (node instanceof BnfStringLiteralExpression) return getTokenName(StringUtil.stripQuotesAroundValue(node.getText()));
+    if (node instanceof BnfReferenceOrToken && file.getRule(node.getText()) == null) return node.getText();
+    return null;
+  }
+
+  @NotNull
+  ExpressionNode getNode(@NotNull BnfRule rule, @NotNull BnfExpression initialNode, @NotNull String funcName) {
+    Trinity<BnfRule, BnfExpression, String> key = Trinity.create(rule, initialNode, funcName);
+    ExpressionNode node = myNodes.get(key);
+    if (node == null) {
+      node = ConcurrencyUtil.cacheOrGet(myNodes, key, new ExpressionNode(this, rule, initialNode, funcName));
+    }
+    return node;
+  }
+
+  @NotNull
+  NodeCall getCall(@NotNull BnfRule rule, @Nullable BnfExpression node, @NotNull String nextName) {
+    Trinity<BnfRule, BnfExpression, String> key = Trinity.create(rule, node, nextName);
+    NodeCall call = myCalls.get(key);
+    if (call == null) {
+      call = ConcurrencyUtil.cacheOrGet(myCalls, key, new NodeCall(this, rule, node, nextName));
+    }
+    return call;
+  }
+
+  @NotNull
+  ExpressionRoot getExpressionRoot(@NotNull ExpressionHelper.ExpressionInfo info) {
+    ExpressionRoot root = myRoots.get(info);
+    if (root == null) {
+      root = ConcurrencyUtil.cacheOrGet(myRoots, info, new ExpressionRoot(info));
+    }
+    return root;
+  }
+
+  /**
+   * Names of the tokens that may follow the rule for {@code recoverWhile=#auto},
+   * empty if some of them are not simple tokens.
+   */
+  @NotNull
+  String[] getAutoRecoverTokens(@NotNull BnfRule rule) {
+    String[] tokens = myAutoRecoverTokens.get(rule);
+    if (tokens == null) {
+      tokens = ConcurrencyUtil.cacheOrGet(myAutoRecoverTokens, rule, calcAutoRecoverTokens(rule));
+    }
+    return tokens;
+  }
+
+  /**
+   * @noinspection StringEquality
+   */
+  @NotNull
+  private String[] calcAutoRecoverTokens(@NotNull BnfRule rule) {
+    Set<String> nextSet = BnfFirstNextTable.getCached(file).getNext(rule);
+    List<String> tokens = ContainerUtil.newArrayListWithCapacity(nextSet.size());
+    for (String s : nextSet) {
+      if (file.getRule(s) != null) continue; // ignore left recursion
+      if (s == BnfFirstNextAnalyzer.MATCHES_EOF || s == BnfFirstNextAnalyzer.MATCHES_NOTHING) continue;
+
+      String tokenName = s == BnfFirstNextAnalyzer.MATCHES_ANY ? null : getTokenName(StringUtil.stripQuotesAroundValue(s));
+      if (tokenName == null) return ArrayUtil.EMPTY_STRING_ARRAY;
+      tokens.add(tokenName);
+    }
+    return ArrayUtil.toStringArray(tokens);
+  }
+
+  @Nullable
+  String getTokenName(String value) {
+    return simpleTokens.get(value);
+  }
+
+  boolean isTokenExpression(BnfExpression node) {
+    return node instanceof BnfLiteralExpression || node instanceof BnfReferenceOrToken && file.getRule(node.getText()) == null;
+  }
+
+  /**
+   * Expression method of a rule or a rule part: everything {@code LivePreviewParser.expression} needs
+   * besides the builder state.
+   */
+  static final class ExpressionNode {
+    final LivePreviewGraph graph;
+    final BnfRule rule;
+    final BnfExpression node;
+    final IElementType type;
+    final boolean isPrivate;
+    final String recoverWhile;
+    final BnfRule recoverRule;
+    final String elementType;
+    final String frameName;
+    final String funcName;
+    final int modifiers;
+    final boolean alwaysTrue;
+    final boolean pinned;
+    final boolean sectionRequired;
+    final boolean sectionRequiredSimple;
+    // private token or rule reference, called directly
+    final boolean directCall;
+
+    final List<BnfExpression> children;
+    final String[] childNames;
+    final boolean[] pinMatches;
+    final boolean[] predicates;
+    final boolean[] tokenExpressions;
+    // token sequence parts: token name or null, isTokenLike marks the ones consumeTokens() can handle
+    final String[] tokenNames;
+    final boolean[] isTokenLike;
+    // calls linked on first use: child calls and token sequence fallback calls that reuse funcName
+    private final NodeCall[] myChildCalls;
+    private final NodeCall[] mySequenceCalls;
+
+    ExpressionNode(LivePreviewGraph graph, BnfRule rule, BnfExpression initialNode, String funcName) {
+      this.graph = graph;
+      this.rule = rule;
+      this.funcName = funcName;
+      boolean isRule = initialNode.getParent() == rule;
+      node = getNonTrivialNode(initialNode);
+      IElementType type = getEffectiveType(node);
+
+      boolean firstNonTrivial = node == Rule.firstNotTrivial(rule);
+      isPrivate = !(isRule || firstNonTrivial) || Rule.isPrivate(rule) || graph.grammarRoot == rule;
+      boolean isLeft = firstNonTrivial && Rule.isLeft(rule);
+      boolean isLeftInner = isLeft && (isPrivate || Rule.isInner(rule));
+      boolean isBranch = !isPrivate && Rule.isUpper(rule);
+      recoverWhile = firstNonTrivial ? getAttribute(rule, KnownAttribute.RECOVER_WHILE) : null;
+      recoverRule = recoverWhile == null || BnfConstants.RECOVER_AUTO.equals(recoverWhile) ? null : graph.file.getRule(recoverWhile);
+      boolean canCollapse = !isPrivate && (!isLeft || isLeftInner) && firstNonTrivial && graph.graphHelper.canCollapse(rule);
+      String elementTypeName = getElementType(rule, graph.G.generateElementCase);
+      elementType = StringUtil.isEmpty(elementTypeName) ? null : elementTypeName;
+
+      if (node instanceof BnfReferenceOrToken || node instanceof BnfLiteralExpression || node instanceof BnfExternalExpression) {
+        children = Collections.singletonList(node);
+        directCall = isPrivate && !isLeftInner && recoverWhile == null;
+        if (!directCall) type = BNF_SEQUENCE;
+      }
+      else {
+        children = getChildExpressions(node);
+        directCall = false;
+      }
+      this.type = type;
+      frameName = firstNonTrivial && !Rule.isMeta(rule) ? getRuleDisplayName(rule, !isPrivate) : null;
+
+      PinMatcher pinMatcher = new PinMatcher(rule, type, firstNonTrivial ? rule.getName() : funcName);
+      pinned = pinMatcher.active();
+      alwaysTrue = type == BNF_OP_OPT || type == BNF_OP_ZEROMORE;
+
+      int modifiers = 0;
+      if (canCollapse) modifiers |= _COLLAPSE_;
+      if (isLeftInner) modifiers |= _LEFT_INNER_;
+      else if (isLeft) modifiers |= _LEFT_;
+      if (type == BNF_OP_AND) modifiers |= _AND_;
+      else if (type == BNF_OP_NOT) modifiers |= _NOT_;
+      if (isBranch) modifiers |= _UPPER_;
+      this.modifiers = modifiers;
+
+      sectionRequired = !alwaysTrue || !isPrivate || isLeft || recoverWhile != null;
+      sectionRequiredSimple = sectionRequired && modifiers == _NONE_ && recoverWhile == null && !(modifiers == 0 && (pinned || frameName != null));
+
+      int size = children.size();
+      childNames = new String[size];
+      pinMatches = new boolean[size];
+      predicates = new boolean[size];
+      tokenExpressions = new boolean[size];
+      tokenNames = new String[size];
+      isTokenLike = new boolean[size];
+      myChildCalls = new NodeCall[size];
+      mySequenceCalls = new NodeCall[size];
+      for (int i = 0; i < size; i++) {
+        BnfExpression child = children.get(i);
+        childNames[i] = getNextName(funcName, i);
+        pinMatches[i] = pinMatcher.matches(i, child);
+        predicates[i] = getEffectiveExpression(graph.file, child) instanceof BnfPredicate;
+        tokenExpressions[i] = graph.isTokenExpression(child);
+        IElementType childType = child.getNode().getElementType();
+        String text = child.getText();
+        if (childType == BNF_STRING && text.charAt(0) != '\"') {
+          tokenNames[i] = graph.getTokenName(StringUtil.stripQuotesAroundValue(text));
+          isTokenLike[i] = true;
+        }
+        else if (childType == BNF_REFERENCE_OR_TOKEN && graph.file.getRule(text) == null) {
+          tokenNames[i] = text;
+          isTokenLike[i] = true;
+        }
+      }
+    }
+
+    @NotNull
+    NodeCall getChildCall(int i) {
+      NodeCall call = myChildCalls[i];
+      if (call == null) myChildCalls[i] = call = graph.getCall(rule, children.get(i), childNames[i]);
+      return call;
+    }
+
+    @NotNull
+    NodeCall getSequenceCall(int i) {
+      NodeCall call = mySequenceCalls[i];
+      if (call == null) mySequenceCalls[i] = call = graph.getCall(rule, children.get(i), funcName);
+      return call;
+    }
+  }
+
+  /**
+   * Resolved target of {@code LivePreviewParser.generateNodeCall}.
+   */
+  static final class NodeCall {
+    final LivePreviewGraph graph;
+    final BnfRule rule;
+    final BnfExpression node;
+    final String nextName;
+    final IElementType type;
+    final String text;
+    // BNF_STRING: token name if the text is a registered token
+    final String tokenName;
+    // BNF_REFERENCE_OR_TOKEN: target rule
+    final BnfRule subRule;
+    final ExpressionHelper.ExpressionInfo info;
+    final int argPriority;
+    // BNF_EXTERNAL_EXPRESSION
+    final List<BnfExpression> expressions;
+    final boolean metaParameter;
+    // linked on first use
+    private ExpressionNode myTarget;
+
+    NodeCall(LivePreviewGraph graph, BnfRule rule, @Nullable BnfExpression node, String nextName) {
+      this.graph = graph;
+      this.rule = rule;
+      this.node = node;
+      this.nextName = nextName;
+      type = node == null ? BNF_REFERENCE_OR_TOKEN : getEffectiveType(node);
+      String text = node == null ? nextName : node.getText();
+      if (type == BNF_STRING) {
+        text = StringUtil.stripQuotesAroundValue(text);
+        tokenName = graph.getTokenName(text);
+      }
+      else {
+        tokenName = null;
+      }
+      this.text = text;
+      subRule = type == BNF_REFERENCE_OR_TOKEN ? graph.file.getRule(text) : null;
+      info = subRule == null || Rule.isExternal(subRule) ? null :
+             ExpressionGeneratorHelper.getInfoForExpressionParsing(graph.expressionHelper, subRule);
+      if (info != null) {
+        int priority = info.getPriority(rule);
+        int arg1Priority = subRule == info.rootRule ? -1 : info.getPriority(subRule);
+        argPriority = arg1Priority == -1 ? (priority == info.nextPriority - 1 ? -1 : priority) : arg1Priority - 1;
+      }
+      else {
+        argPriority = -1;
+      }
+      if (type == BNF_EXTERNAL_EXPRESSION && node != null) {
+        expressions = ((BnfExternalExpression)node).getExpressionList();
+        metaParameter = expressions.size() == 1 && Rule.isMeta(rule);
+      }
+      else {
+        expressions = Collections.emptyList();
+        metaParameter = false;
+      }
+    }
+
+    /**
+     * @return the sub-rule node for rule references, the node itself for nested expressions
+     */
+    @NotNull
+    ExpressionNode getTarget() {
+      ExpressionNode target = myTarget;
+      if (target == null) {
+        myTarget = target = subRule != null ?
+                            graph.getNode(subRule, subRule.getExpression(), subRule.getName()) :
+                            graph.getNode(rule, ObjectUtils.assertNotNull(node), nextName);
+      }
+      return target;
+    }
+  }
+
+  /**
+   * Operators of an expression parsing root, grouped the way the generated parser calls them.
+   */
+  static final class ExpressionRoot {
+    final String methodName;
+    final String kernelMethodName;
+    final String frameName;
+    final List<ExpressionHelper.OperatorInfo> prefixOperators;
+    final List<ExpressionHelper.OperatorInfo> suffixOperators;
+    final Map<ExpressionHelper.OperatorInfo, String[]> operatorNames = ContainerUtil.newHashMap();
+
+    ExpressionRoot(ExpressionHelper.ExpressionInfo info) {
+      Map<String, List<ExpressionHelper.OperatorInfo>> opCalls = ContainerUtil.newLinkedHashMap();
+      for (BnfRule rule : info.priorityMap.keySet()) {
+        ExpressionHelper.OperatorInfo operator = info.operatorMap.get(rule);
+        String opCall = getNextName(operator.rule.getName(), 0);
+        List<ExpressionHelper.OperatorInfo> list = opCalls.get(opCall);
+        if (list == null) opCalls.put(opCall, list = ContainerUtil.newArrayListWithCapacity(2));
+        list.add(operator);
+        operatorNames.put(operator, new String[]{opCall, getNextName(operator.rule.getName(), 1)});
+      }
+      methodName = info.rootRule.getName();
+      kernelMethodName = getNextName(methodName, 0);
+      frameName = quote(getRuleDisplayName(info.rootRule, true));
+      prefixOperators = filter(opCalls, ExpressionHelper.OperatorType.ATOM, ExpressionHelper.OperatorType.PREFIX);
+      suffixOperators = filter(opCalls, ExpressionHelper.OperatorType.BINARY, ExpressionHelper.OperatorType.N_ARY, ExpressionHelper.OperatorType.POSTFIX);
+    }
+
+    private static List<ExpressionHelper.OperatorInfo> filter(Map<String, List<ExpressionHelper.OperatorInfo>> opCalls,
+                                                              ExpressionHelper.OperatorType... operatorTypes) {
+      List<ExpressionHelper.OperatorInfo> result = ContainerUtil.newArrayList();
+      for (List<ExpressionHelper.OperatorInfo> list : opCalls.values()) {
+        ContainerUtil.addIfNotNull(result, ContainerUtil.getFirstItem(ExpressionGeneratorHelper.findOperators(list, operatorTypes)));
+      }
+      return result;
+    }
+  }
+}
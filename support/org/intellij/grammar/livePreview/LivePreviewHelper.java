@@ -18,6 +18,9 @@ package org.intellij.grammar.livePreview;
 
 import com.intellij.lang.*;
 import com.intellij.lexer.Lexer;
+import com.intellij.openapi.application.ApplicationAdapter;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ex.ApplicationManagerEx;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
@@ -28,17 +31,22 @@ import com.intellij.openapi.editor.highlighter.EditorHighlighterFactory;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditor;
 import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerAdapter;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
 import com.intellij.openapi.fileEditor.TextEditor;
 import com.intellij.openapi.fileEditor.ex.FileEditorManagerEx;
 import com.intellij.openapi.fileEditor.impl.EditorWindow;
 import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.wm.WindowManager;
-import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiManager;
-import com.intellij.psi.TokenType;
+import com.intellij.psi.*;
 import com.intellij.psi.impl.PsiDocumentManagerImpl;
 import com.intellij.psi.impl.PsiManagerEx;
 import com.intellij.psi.impl.file.impl.FileManager;
@@ -46,18 +54,25 @@ import com.intellij.testFramework.LightVirtualFile;
 import com.intellij.util.FileContentUtil;
 import com.intellij.util.ObjectUtils;
 import com.intellij.util.PairProcessor;
+import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.containers.MultiMap;
 import com.intellij.util.ui.update.MergingUpdateQueue;
 import com.intellij.util.ui.update.Update;
 import org.intellij.grammar.BnfFileType;
+import org.intellij.grammar.KnownAttribute;
 import org.intellij.grammar.parser.GeneratedParserUtilBase;
+import org.intellij.grammar.psi.BnfAttr;
 import org.intellij.grammar.psi.BnfExpression;
 import org.intellij.grammar.psi.BnfFile;
 import org.intellij.grammar.psi.BnfRule;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author gregsh
@@ -70,6 +85,10 @@ public class LivePreviewHelper {
     if (virtualFile == null) return;
     Project project = bnfFile.getProject();
     installUpdateListener(project);
+    VirtualFile grammarFile = bnfFile.getVirtualFile();
+    if (grammarFile != null && grammarFile.getUserData(LIVE_PREVIEW_GRAMMAR_SIGNATURE) == null) {
+      grammarFile.putUserData(LIVE_PREVIEW_GRAMMAR_SIGNATURE, getGrammarSignature(bnfFile));
+    }
 
     FileEditorManagerEx fileEditorManager = FileEditorManagerEx.getInstanceEx(project);
     EditorWindow curWindow = fileEditorManager.getCurrentWindow();
@@ -84,6 +103,9 @@ public class LivePreviewHelper {
 
     String fileName = bnfFile.getName() + ".preview";
     LightVirtualFile virtualFile = new LightVirtualFile(fileName, language, text);
+    if (language instanceof LivePreviewLanguage) {
+      virtualFile.putUserData(LIVE_PREVIEW_BINDING_STAMP, ((LivePreviewLanguage)language).getBindingStamp());
+    }
     final Project project = bnfFile.getProject();
     return PsiManager.getInstance(project).findFile(virtualFile);
   }
@@ -115,48 +137,250 @@ public class LivePreviewHelper {
     LanguageParserDefinitions.INSTANCE.removeExplicitExtension(language, LanguageParserDefinitions.INSTANCE.forLanguage(language));
   }
 
+  /**
+   * @return the live preview language of a preview file or null if there is none,
+   * or the language has been released and bound to another grammar since the file was created
+   */
+  @Nullable
+  public static LivePreviewLanguage getPreviewLanguage(@Nullable VirtualFile file) {
+    Language language = file instanceof LightVirtualFile ? ((LightVirtualFile)file).getLanguage() : null;
+    if (!(language instanceof LivePreviewLanguage)) return null;
+    Integer stamp = file.getUserData(LIVE_PREVIEW_BINDING_STAMP);
+    return stamp != null && stamp == ((LivePreviewLanguage)language).getBindingStamp() ? (LivePreviewLanguage)language : null;
+  }
+
+  /**
+   * Languages are shared by all projects, a language is in use while any project has a preview of it open.
+   */
+  private static boolean isLanguageInUse(@NotNull LivePreviewLanguage language) {
+    for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+      if (project.isDisposed()) continue;
+      for (VirtualFile openFile : FileEditorManager.getInstance(project).getOpenFiles()) {
+        if (getPreviewLanguage(openFile) == language) return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops everything kept for the grammar once its last preview is closed
+   * and returns the language to the pool for reuse.
+   */
+  public static void releaseLanguage(@Nullable Project project, @NotNull LivePreviewLanguage language) {
+    BnfFile grammar = language.getGrammar(project);
+    VirtualFile grammarFile = language.getGrammarFile();
+    if (grammar != null) {
+      LivePreviewProfile.release(grammar);
+      LivePreviewLexer.release(grammar);
+      LivePreviewGraph.release(grammar);
+    }
+    if (grammarFile != null) grammarFile.putUserData(LIVE_PREVIEW_GRAMMAR_SIGNATURE, null);
+    unregisterLanguageExtensions(language);
+    LivePreviewLanguage.release(language);
+  }
+
   public static MergingUpdateQueue getUpdateQueue(Project project) {
     return project.getUserData(LIVE_PREVIEW_QUEUE);
   }
 
   private static final Key<MergingUpdateQueue> LIVE_PREVIEW_QUEUE = Key.create("LIVE_PREVIEW_QUEUE");
+  private static final Key<ProgressIndicator> LIVE_PREVIEW_PROGRESS = Key.create("LIVE_PREVIEW_PROGRESS");
+  private static final Key<String> LIVE_PREVIEW_GRAMMAR_SIGNATURE = Key.create("LIVE_PREVIEW_GRAMMAR_SIGNATURE");
+  private static final Key<Integer> LIVE_PREVIEW_BINDING_STAMP = Key.create("LIVE_PREVIEW_BINDING_STAMP");
+
+  // attributes used only by PSI generation, changing them does not affect the preview
+  private static final Set<String> PSI_ONLY_ATTRIBUTES = ContainerUtil.newTroveSet(
+    KnownAttribute.CLASS_HEADER.getName(), KnownAttribute.PARSER_IMPORTS.getName(),
+    KnownAttribute.PSI_CLASS_PREFIX.getName(), KnownAttribute.PSI_IMPL_CLASS_SUFFIX.getName(),
+    KnownAttribute.PSI_PACKAGE.getName(), KnownAttribute.PSI_IMPL_PACKAGE.getName(),
+    KnownAttribute.PSI_VISITOR_NAME.getName(), KnownAttribute.PSI_IMPL_UTIL_CLASS.getName(),
+    KnownAttribute.ELEMENT_TYPE_CLASS.getName(), KnownAttribute.TOKEN_TYPE_CLASS.getName(),
+    KnownAttribute.ELEMENT_TYPE_HOLDER_CLASS.getName(), KnownAttribute.ELEMENT_TYPE_FACTORY.getName(),
+    KnownAttribute.TOKEN_TYPE_FACTORY.getName(), KnownAttribute.IMPLEMENTS.getName(),
+    KnownAttribute.MIXIN.getName(), KnownAttribute.STUB_CLASS.getName(), KnownAttribute.METHODS.getName());
+
   private static void installUpdateListener(final Project project) {
-    MergingUpdateQueue queue = project.getUserData(LIVE_PREVIEW_QUEUE);
-    if (queue == null) {
-      JComponent activationComponent = WindowManager.getInstance().getFrame(project).getRootPane();
-      project.putUserData(LIVE_PREVIEW_QUEUE, queue = new MergingUpdateQueue("LIVE_PREVIEW_QUEUE", 1000, true, null, project, activationComponent));
-    }
-    final FileEditorManager fileEditorManager = FileEditorManager.getInstance(project);
-    final MergingUpdateQueue finalQueue = queue;
+    if (project.getUserData(LIVE_PREVIEW_QUEUE) != null) return;
+    JComponent activationComponent = WindowManager.getInstance().getFrame(project).getRootPane();
+    final MergingUpdateQueue queue = new MergingUpdateQueue("LIVE_PREVIEW_QUEUE", 1000, true, null, project, activationComponent);
+    project.putUserData(LIVE_PREVIEW_QUEUE, queue);
     EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentAdapter() {
       @Override
       public void documentChanged(DocumentEvent e) {
-        Document document = e.getDocument();
-        final FileDocumentManager fileDocumentManager = FileDocumentManager.getInstance();
-        VirtualFile file = fileDocumentManager.getFile(document);
+        VirtualFile file = FileDocumentManager.getInstance().getFile(e.getDocument());
         if (file == null || file.getFileType() != BnfFileType.INSTANCE) return;
-        finalQueue.cancelAllUpdates();
-        finalQueue.queue(new Update(Boolean.TRUE, true) {
+        cancelPreviewUpdate(project);
+        queuePreviewUpdate(project, queue, file);
+      }
+    }, project);
+    project.getMessageBus().connect(project).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new FileEditorManagerAdapter() {
+      @Override
+      public void fileOpened(@NotNull final FileEditorManager source, @NotNull final VirtualFile file) {
+        // a preview of a released language, e.g. reopened from recent files, would be parsed with another grammar
+        Language language = file instanceof LightVirtualFile ? ((LightVirtualFile)file).getLanguage() : null;
+        if (!(language instanceof LivePreviewLanguage) || getPreviewLanguage(file) != null) return;
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
           @Override
           public void run() {
-            FileManager fileManager = ((PsiManagerEx)PsiManager.getInstance(project)).getFileManager();
-            for (FileEditor fileEditor : fileEditorManager.getAllEditors()) {
-              if (!(fileEditor instanceof TextEditor)) continue;
-              EditorEx editor = (EditorEx)((TextEditor)fileEditor).getEditor();
-              Document document = editor.getDocument();
-              VirtualFile virtualFile = editor.getVirtualFile();
-              Language language = virtualFile instanceof LightVirtualFile ? ((LightVirtualFile)virtualFile).getLanguage() : null;
-              if (!(language instanceof LivePreviewLanguage)) continue;
-
-              FileContentUtil.reparseFiles(project, Collections.singletonList(virtualFile), false);
-              fileManager.setViewProvider(virtualFile, fileManager.createFileViewProvider(virtualFile, true));
-              PsiDocumentManagerImpl.cachePsi(document, ObjectUtils.assertNotNull(PsiManager.getInstance(project).findFile(virtualFile)));
-              editor.setHighlighter(EditorHighlighterFactory.getInstance().createEditorHighlighter(project, virtualFile));
-            }
+            source.closeFile(file);
           }
-        });
+        }, project.getDisposed());
+      }
+
+      @Override
+      public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+        LivePreviewLanguage language = getPreviewLanguage(file);
+        if (language == null || isLanguageInUse(language)) return;
+        releaseLanguage(project, language);
+      }
+    });
+    // a running background parse must not delay write actions, it is cancelled and requeued
+    ApplicationManager.getApplication().addApplicationListener(new ApplicationAdapter() {
+      @Override
+      public void beforeWriteActionStart(Object action) {
+        cancelPreviewUpdate(project);
       }
     }, project);
+  }
+
+  private static void cancelPreviewUpdate(Project project) {
+    ProgressIndicator indicator = project.getUserData(LIVE_PREVIEW_PROGRESS);
+    if (indicator != null) indicator.cancel();
+  }
+
+  private static void queuePreviewUpdate(final Project project, final MergingUpdateQueue queue, final VirtualFile grammarFile) {
+    queue.queue(new Update(grammarFile) {
+      @Override
+      public void run() {
+        PsiDocumentManager.getInstance(project).performWhenAllCommitted(new Runnable() {
+          @Override
+          public void run() {
+            updatePreviews(project, queue, grammarFile);
+          }
+        });
+      }
+    });
+  }
+
+  private static void updatePreviews(final Project project, final MergingUpdateQueue queue, final VirtualFile grammarFile) {
+    if (project.isDisposed() || !grammarFile.isValid()) return;
+    PsiFile grammarPsi = PsiManager.getInstance(project).findFile(grammarFile);
+    if (!(grammarPsi instanceof BnfFile)) return;
+    final MultiMap<VirtualFile, EditorEx> editors = MultiMap.createLinked();
+    final Map<VirtualFile, Long> stamps = ContainerUtil.newTroveMap();
+    for (FileEditor fileEditor : FileEditorManager.getInstance(project).getAllEditors()) {
+      if (!(fileEditor instanceof TextEditor)) continue;
+      EditorEx editor = (EditorEx)((TextEditor)fileEditor).getEditor();
+      VirtualFile virtualFile = editor.getVirtualFile();
+      LivePreviewLanguage language = getPreviewLanguage(virtualFile);
+      if (language == null || !grammarFile.equals(language.getGrammarFile())) continue;
+      editors.putValue(virtualFile, editor);
+      stamps.put(virtualFile, editor.getDocument().getModificationStamp());
+    }
+    final String signature = getGrammarSignature((BnfFile)grammarPsi);
+    if (editors.isEmpty() || signature.equals(grammarFile.getUserData(LIVE_PREVIEW_GRAMMAR_SIGNATURE))) return;
+
+    cancelPreviewUpdate(project);
+    final ProgressIndicator indicator = new ProgressIndicatorBase();
+    project.putUserData(LIVE_PREVIEW_PROGRESS, indicator);
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        final Map<VirtualFile, FileViewProvider> providers = ContainerUtil.newLinkedHashMap();
+        boolean done;
+        try {
+          done = ProgressManager.getInstance().runProcess(new Computable<Boolean>() {
+            @Override
+            public Boolean compute() {
+              return ApplicationManagerEx.getApplicationEx().tryRunReadAction(new Runnable() {
+                @Override
+                public void run() {
+                  if (project.isDisposed()) return;
+                  FileManager fileManager = ((PsiManagerEx)PsiManager.getInstance(project)).getFileManager();
+                  for (VirtualFile virtualFile : editors.keySet()) {
+                    ProgressManager.checkCanceled();
+                    FileViewProvider provider = fileManager.createFileViewProvider(virtualFile, true);
+                    PsiFile psiFile = provider.getPsi(provider.getBaseLanguage());
+                    if (psiFile != null) psiFile.getNode(); // parse here, not on the UI thread
+                    providers.put(virtualFile, provider);
+                  }
+                }
+              });
+            }
+          }, indicator);
+        }
+        catch (ProcessCanceledException e) {
+          done = false;
+        }
+        if (!done) {
+          if (!project.isDisposed()) queuePreviewUpdate(project, queue, grammarFile);
+          return;
+        }
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            if (indicator.isCanceled()) {
+              queuePreviewUpdate(project, queue, grammarFile);
+              return;
+            }
+            if (applyPreviews(project, editors, stamps, providers)) {
+              grammarFile.putUserData(LIVE_PREVIEW_GRAMMAR_SIGNATURE, signature);
+            }
+            else {
+              queuePreviewUpdate(project, queue, grammarFile);
+            }
+          }
+        }, project.getDisposed());
+      }
+    });
+  }
+
+  private static boolean applyPreviews(Project project,
+                                       MultiMap<VirtualFile, EditorEx> editors,
+                                       Map<VirtualFile, Long> stamps,
+                                       Map<VirtualFile, FileViewProvider> providers) {
+    boolean complete = true;
+    FileManager fileManager = ((PsiManagerEx)PsiManager.getInstance(project)).getFileManager();
+    for (VirtualFile virtualFile : providers.keySet()) {
+      Collection<EditorEx> fileEditors = editors.get(virtualFile);
+      Document document = fileEditors.iterator().next().getDocument();
+      if (document.getModificationStamp() != stamps.get(virtualFile)) {
+        // the preview text has been changed meanwhile, the parsed tree is stale
+        complete = false;
+        continue;
+      }
+      FileContentUtil.reparseFiles(project, Collections.singletonList(virtualFile), false);
+      fileManager.setViewProvider(virtualFile, providers.get(virtualFile));
+      PsiDocumentManagerImpl.cachePsi(document, ObjectUtils.assertNotNull(PsiManager.getInstance(project).findFile(virtualFile)));
+      for (EditorEx editor : fileEditors) {
+        editor.setHighlighter(EditorHighlighterFactory.getInstance().createEditorHighlighter(project, virtualFile));
+      }
+    }
+    return complete;
+  }
+
+  /**
+   * Grammar text without whitespace, comments and PSI-only attributes.
+   * Previews are reparsed only when it changes.
+   */
+  @NotNull
+  private static String getGrammarSignature(@NotNull BnfFile file) {
+    final StringBuilder sb = new StringBuilder();
+    file.accept(new PsiRecursiveElementWalkingVisitor() {
+      @Override
+      public void visitElement(PsiElement element) {
+        if (element instanceof PsiWhiteSpace || element instanceof PsiComment) return;
+        if (element instanceof BnfAttr && PSI_ONLY_ATTRIBUTES.contains(((BnfAttr)element).getName())) return;
+        if (element.getFirstChild() == null) {
+          sb.append(element.getText()).append(' ');
+        }
+        else {
+          super.visitElement(element);
+        }
+      }
+    });
+    return sb.toString();
+  }
 
     //project.getMessageBus().connect(project).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new FileEditorManagerAdapter() {
     //  @Override
@@ -17,33 +17,43 @@
 package org.intellij.grammar.livePreview;
 
 import com.intellij.lang.Language;
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.pointers.VirtualFilePointer;
 import com.intellij.openapi.vfs.pointers.VirtualFilePointerManager;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiManager;
 import com.intellij.util.ObjectUtils;
+import com.intellij.util.containers.ContainerUtil;
 import org.intellij.grammar.psi.BnfFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.objectweb.asm.*;
 
 import java.lang.ref.SoftReference;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.objectweb.asm.Opcodes.*;
 
 
 /**
+ * Languages are registered per class, so every live preview language gets its own generated class.
+ * The classes cannot be unloaded, so released instances are pooled and bound to the next grammar,
+ * i.e. the number of classes is limited by the number of grammars previewed at the same time.
+ *
  * @author gregsh
  */
 public class LivePreviewLanguage extends Language {
 
-  private final VirtualFilePointer myFilePointer;
-  private final SoftReference<BnfFile> myBnfFile;
+  private volatile VirtualFilePointer myFilePointer;
+  private volatile Disposable myFilePointerDisposable;
+  private volatile SoftReference<BnfFile> myBnfFile;
+  private volatile int myBindingStamp;
   public static final Language BASE_INSTANCE = new Language("BNF_LP") {
     @Override
     public String getDisplayName() {
@@ -52,21 +62,47 @@ public class LivePreviewLanguage extends Language {
   };
 
   private static final MyClassLoader ourClassLoader = new MyClassLoader();
+  private static final List<LivePreviewLanguage> ourReleased = ContainerUtil.newArrayList();
+  private static final AtomicInteger ourBindingCounter = new AtomicInteger();
 
   protected LivePreviewLanguage(@NotNull BnfFile grammarFile) {
     super(BASE_INSTANCE, ObjectUtils.assertNotNull(grammarFile.getVirtualFile()).getPath());
+    bind(grammarFile);
+  }
+
+  private void bind(@NotNull BnfFile grammarFile) {
     VirtualFile virtualFile = ObjectUtils.assertNotNull(grammarFile.getVirtualFile());
+    myBindingStamp = ourBindingCounter.incrementAndGet();
     Application app = ApplicationManager.getApplication();
     if (app.isUnitTestMode()) {
       myBnfFile = new SoftReference<BnfFile>(grammarFile);
       myFilePointer = null;
     }
     else {
-      myFilePointer = VirtualFilePointerManager.getInstance().create(virtualFile, app, null);
+      Disposable disposable = Disposer.newDisposable();
+      Disposer.register(app, disposable);
+      myFilePointer = VirtualFilePointerManager.getInstance().create(virtualFile, disposable, null);
+      myFilePointerDisposable = disposable;
       myBnfFile = null;
     }
   }
 
+  private void unbind() {
+    Disposable disposable = myFilePointerDisposable;
+    if (disposable != null) Disposer.dispose(disposable);
+    myFilePointerDisposable = null;
+    myFilePointer = null;
+    myBnfFile = null;
+  }
+
+  /**
+   * Changes every time a pooled instance is bound to a grammar,
+   * preview files created for a previous grammar are detected by it.
+   */
+  public int getBindingStamp() {
+    return myBindingStamp;
+  }
+
   @Override
   public String getDisplayName() {
     VirtualFile file = getGrammarFile();
@@ -75,24 +111,32 @@ public class LivePreviewLanguage extends Language {
 
   @Nullable
   public VirtualFile getGrammarFile() {
-    if (myBnfFile != null) {
-      BnfFile file = myBnfFile.get();
+    SoftReference<BnfFile> bnfFile = myBnfFile;
+    if (bnfFile != null) {
+      BnfFile file = bnfFile.get();
       return file == null? null : file.getVirtualFile();
     }
-    else {
-      return myFilePointer.getFile();
-    }
+    VirtualFilePointer filePointer = myFilePointer;
+    return filePointer == null ? null : filePointer.getFile();
   }
 
   @Nullable
   public BnfFile getGrammar(@Nullable Project project) {
-    if (myBnfFile != null) return myBnfFile.get();
+    SoftReference<BnfFile> bnfFile = myBnfFile;
+    if (bnfFile != null) return bnfFile.get();
     VirtualFile file = project == null? null : getGrammarFile();
     PsiFile psiFile = file == null? null : PsiManager.getInstance(project).findFile(file);
     return psiFile instanceof BnfFile? (BnfFile)psiFile : null;
   }
 
   public static LivePreviewLanguage newInstance(PsiFile psiFile) {
+    synchronized (ourReleased) {
+      if (!ourReleased.isEmpty()) {
+        LivePreviewLanguage language = ourReleased.remove(ourReleased.size() - 1);
+        language.bind((BnfFile)psiFile);
+        return language;
+      }
+    }
     try {
       return (LivePreviewLanguage)ourClassLoader.createClass().getDeclaredConstructors()[0].newInstance(psiFile);
     }
@@ -101,6 +145,18 @@ public class LivePreviewLanguage extends Language {
     }
   }
 
+  /**
+   * Detaches the language from its grammar and makes it available for another one.
+   * Language extensions shall be unregistered beforehand.
+   */
+  public static void release(@NotNull LivePreviewLanguage language) {
+    synchronized (ourReleased) {
+      if (ourReleased.contains(language)) return;
+      language.unbind();
+      ourReleased.add(language);
+    }
+  }
+
   private static class MyClassLoader extends ClassLoader {
     private final AtomicInteger myCounter = new AtomicInteger();
 
@@ -19,11 +19,14 @@ package org.intellij.grammar.livePreview;
 import com.intellij.lang.Language;
 import com.intellij.lexer.LexerBase;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.TokenType;
 import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.CachedValue;
 import com.intellij.psi.util.CachedValueProvider;
 import com.intellij.psi.util.CachedValuesManager;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.ObjectUtils;
 import com.intellij.util.containers.ContainerUtil;
 import org.intellij.grammar.KnownAttribute;
@@ -36,6 +39,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -45,9 +49,14 @@ import static org.intellij.grammar.generator.ParserGeneratorUtil.getRootAttribut
 import static org.intellij.grammar.livePreview.LivePreviewParserDefinition.*;
 
 /**
+ * Tokens are matched with opaque region bounds so a token never depends on the text before it.
+ * Thus the lexer is stateless and can be restarted at any token boundary,
+ * i.e. highlighting relexes only the damaged region of a document.
+ *
  * @author gregsh
  */
 public class LivePreviewLexer extends LexerBase {
+  public static final int INITIAL_STATE = 0;
 
   private CharSequence myBuffer;
   private int myEndOffset;
@@ -56,44 +65,63 @@ public class LivePreviewLexer extends LexerBase {
   private IElementType myTokenType;
 
   private final Token[] myTokens;
+  private final TokenAutomaton myAutomaton;
   private Matcher[] myMatchers;
 
   public LivePreviewLexer(Project project, final LivePreviewLanguage language) {
     final BnfFile bnfFile = language.getGrammar(project);
 
-    myTokens = bnfFile == null? new Token[0] : CachedValuesManager.getCachedValue(bnfFile, new CachedValueProvider<Token[]>() {
-      @Nullable
-      @Override
-      public Result<Token[]> compute() {
-        Set<String> usedInGrammar = ContainerUtil.newLinkedHashSet();
-        Map<String, String> map = collectTokenPattern2Name(bnfFile, usedInGrammar);
-
-        Token[] tokens = new Token[map.size()];
-        int i = 0;
-        String tokenConstantPrefix = getRootAttribute(bnfFile, KnownAttribute.ELEMENT_TYPE_PREFIX);
-        for (String pattern : map.keySet()) {
-          String tokenName = map.get(pattern);
-
-          tokens[i++] = new Token(pattern, tokenName, usedInGrammar.contains(tokenName), tokenConstantPrefix, language);
+    myAutomaton = bnfFile == null? new TokenAutomaton(new Token[0], language) : getAutomaton(bnfFile, language);
+    myTokens = myAutomaton.tokens;
+    myMatchers = new Matcher[myTokens.length];
+  }
+
+  private static final Key<CachedValue<TokenAutomaton>> LIVE_PREVIEW_LEXER_KEY = Key.create("LIVE_PREVIEW_LEXER_KEY");
+
+  @NotNull
+  private static TokenAutomaton getAutomaton(@NotNull final BnfFile bnfFile, @NotNull final LivePreviewLanguage language) {
+    CachedValue<TokenAutomaton> value = bnfFile.getUserData(LIVE_PREVIEW_LEXER_KEY);
+    // token types belong to the language, a grammar bound to another pooled language needs new ones
+    if (value == null || value.getValue().language != language) {
+      bnfFile.putUserData(LIVE_PREVIEW_LEXER_KEY, value = CachedValuesManager.getManager(bnfFile.getProject()).createCachedValue(new CachedValueProvider<TokenAutomaton>() {
+        @Nullable
+        @Override
+        public Result<TokenAutomaton> compute() {
+          Set<String> usedInGrammar = ContainerUtil.newLinkedHashSet();
+          Map<String, String> map = collectTokenPattern2Name(bnfFile, usedInGrammar);
+
+          Token[] tokens = new Token[map.size()];
+          int i = 0;
+          String tokenConstantPrefix = getRootAttribute(bnfFile, KnownAttribute.ELEMENT_TYPE_PREFIX);
+          for (String pattern : map.keySet()) {
+            String tokenName = map.get(pattern);
+
+            tokens[i++] = new Token(pattern, tokenName, usedInGrammar.contains(tokenName), tokenConstantPrefix, language);
+          }
+          return Result.create(new TokenAutomaton(tokens, language), bnfFile);
         }
-        return Result.create(tokens, bnfFile);
-      }
-    });
+      }, false));
+    }
+    return value.getValue();
+  }
+
+  static void release(@NotNull BnfFile bnfFile) {
+    bnfFile.putUserData(LIVE_PREVIEW_LEXER_KEY, null);
   }
 
   @Override
   public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+    // matchers are kept between restarts, only a new buffer needs to be set
+    if (myBuffer != buffer) {
+      for (Matcher matcher : myMatchers) {
+        if (matcher != null) matcher.reset(buffer);
+      }
+    }
     myBuffer = buffer;
     myEndOffset = endOffset;
     myPosition = startOffset;
     myTokenEnd = myPosition;
     myTokenType = null;
-    myMatchers = new Matcher[myTokens.length];
-    for (int i = 0; i < myMatchers.length; i++) {
-      Pattern pattern = myTokens[i].pattern;
-      if (pattern == null) continue;
-      myMatchers[i] = pattern.matcher(buffer);
-    }
     nextToken();
   }
 
@@ -114,25 +142,40 @@ public class LivePreviewLexer extends LexerBase {
   }
 
   private boolean findAtOffset(int position) {
-    myTokenEnd = position;
-    myTokenType = null;
-    for (int i = 0; i < myMatchers.length; i++) {
-      if (myMatchers[i] == null) continue;
-      Matcher matcher = myMatchers[i].region(position, myEndOffset);
-      if (matcher.lookingAt()) {
+    // the longest match wins, the first declared token wins among equally long ones
+    int bestEnd = position;
+    int best = -1;
+    TokenAutomaton.Node node = myAutomaton.root;
+    for (int offset = position; offset < myEndOffset; ) {
+      node = node.next(myBuffer.charAt(offset++));
+      if (node == null) break;
+      if (node.token >= 0) {
+        bestEnd = offset;
+        best = node.token;
+      }
+    }
+    for (int i : myAutomaton.getRegexpTokens(myBuffer.charAt(position))) {
+      Matcher matcher = myMatchers[i];
+      if (matcher == null) {
+        myMatchers[i] = matcher = myTokens[i].pattern.matcher(myBuffer);
+      }
+      if (matcher.region(position, myEndOffset).lookingAt()) {
         int end = matcher.end();
-        if (end > myTokenEnd) {
-          myTokenEnd = end;
-          myTokenType = myTokens[i].tokenType;
+        if (end > bestEnd || end == bestEnd && best > i) {
+          bestEnd = end;
+          best = i;
         }
       }
     }
+    myTokenEnd = bestEnd;
+    myTokenType = best < 0 || bestEnd == position ? null : myTokens[best].tokenType;
     return myTokenType != null;
   }
 
   @Override
   public int getState() {
-    return 0;
+    // every token boundary is a restart point
+    return INITIAL_STATE;
   }
 
   @Nullable
@@ -183,6 +226,8 @@ public class LivePreviewLexer extends LexerBase {
     final String constantName;
     final Pattern pattern;
     final IElementType tokenType;
+    /** exact text for tokens that need no regexp matching, otherwise null */
+    final String literal;
 
     Token(String pattern, String mappedName, boolean usedInGrammar, String constantPrefix, LivePreviewLanguage language) {
       constantName = constantPrefix + Case.UPPER.apply(mappedName);
@@ -191,11 +236,13 @@ public class LivePreviewLexer extends LexerBase {
       if (ParserGeneratorUtil.isRegexpToken(pattern)) {
         String patternText = ParserGeneratorUtil.getRegexpTokenRegexp(pattern);
         this.pattern = ParserGeneratorUtil.compilePattern(patternText);
+        literal = isPlainText(patternText) ? patternText : null;
         tokenName = mappedName;
         keyword = false;
       }
       else {
         this.pattern = ParserGeneratorUtil.compilePattern(StringUtil.escapeToRegexp(pattern));
+        literal = pattern;
         tokenName = pattern;
         keyword = StringUtil.isJavaIdentifier(pattern);
       }
@@ -222,6 +269,101 @@ public class LivePreviewLexer extends LexerBase {
     }
   }
 
+  private static boolean isPlainText(String patternText) {
+    for (int i = 0; i < patternText.length(); i++) {
+      if (!Character.isLetterOrDigit(patternText.charAt(i)) && patternText.charAt(i) != '_') return false;
+    }
+    return true;
+  }
+
+  /**
+   * All grammar tokens combined for a single longest-match scan:
+   * literal tokens form a trie and regexp tokens are indexed by the characters they may start with.
+   */
+  static class TokenAutomaton {
+    private static final int ASCII = 128;
+    private static final int[] NO_TOKENS = new int[0];
+
+    final Token[] tokens;
+    final LivePreviewLanguage language;
+    final Node root = new Node();
+    private final int[][] myRegexpByChar = new int[ASCII][];
+    private final int[] myRegexpTokens;
+
+    TokenAutomaton(Token[] tokens, LivePreviewLanguage language) {
+      this.tokens = tokens;
+      this.language = language;
+      List<Integer> regexps = ContainerUtil.newArrayList();
+      for (int i = 0; i < tokens.length; i++) {
+        Token token = tokens[i];
+        if (token.literal != null) {
+          if (!token.literal.isEmpty()) root.add(token.literal, i);
+        }
+        else if (token.pattern != null) {
+          regexps.add(i);
+        }
+      }
+      myRegexpTokens = ArrayUtil.toIntArray(regexps);
+      List<Integer> list = ContainerUtil.newArrayList();
+      for (char c = 0; c < ASCII; c++) {
+        list.clear();
+        for (int i : myRegexpTokens) {
+          if (mayStartWith(tokens[i].pattern, c)) list.add(i);
+        }
+        myRegexpByChar[c] = list.isEmpty() ? NO_TOKENS : ArrayUtil.toIntArray(list);
+      }
+    }
+
+    @NotNull
+    int[] getRegexpTokens(char c) {
+      return c < ASCII ? myRegexpByChar[c] : myRegexpTokens;
+    }
+
+    private static boolean mayStartWith(Pattern pattern, char c) {
+      // a failed match that never looked past the first char cannot succeed on any longer text
+      Matcher matcher = pattern.matcher(String.valueOf(c));
+      return matcher.lookingAt() && matcher.end() > 0 || matcher.hitEnd();
+    }
+
+    static class Node {
+      private static final Node[] EMPTY = new Node[0];
+
+      private char[] myChars = ArrayUtil.EMPTY_CHAR_ARRAY;
+      private Node[] myNext = EMPTY;
+      int token = -1;
+
+      @Nullable
+      Node next(char c) {
+        int i = Arrays.binarySearch(myChars, c);
+        return i < 0 ? null : myNext[i];
+      }
+
+      void add(String text, int tokenIndex) {
+        Node node = this;
+        for (int i = 0; i < text.length(); i++) {
+          char c = text.charAt(i);
+          int idx = Arrays.binarySearch(node.myChars, c);
+          if (idx < 0) {
+            idx = -idx - 1;
+            int count = node.myChars.length;
+            char[] chars = new char[count + 1];
+            Node[] next = new Node[count + 1];
+            System.arraycopy(node.myChars, 0, chars, 0, idx);
+            System.arraycopy(node.myNext, 0, next, 0, idx);
+            System.arraycopy(node.myChars, idx, chars, idx + 1, count - idx);
+            System.arraycopy(node.myNext, idx, next, idx + 1, count - idx);
+            chars[idx] = c;
+            next[idx] = new Node();
+            node.myChars = chars;
+            node.myNext = next;
+          }
+          node = node.myNext[idx];
+        }
+        if (node.token < 0) node.token = tokenIndex;
+      }
+    }
+  }
+
   @Nullable
   private static IElementType guessDelegateType(@NotNull String tokenName,
                                                 @Nullable Pattern pattern,
@@ -22,14 +22,13 @@ import com.intellij.lexer.Lexer;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.tree.IElementType;
-import com.intellij.util.NullableFunction;
+import com.intellij.psi.tree.IReparseableElementType;
 import com.intellij.util.PairProcessor;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.HashMap;
 import com.intellij.util.containers.MultiMap;
-import gnu.trove.TObjectIntHashMap;
+import gnu.trove.TLongHashSet;
 import org.intellij.grammar.KnownAttribute;
-import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
 import org.intellij.grammar.generator.*;
 import org.intellij.grammar.parser.GeneratedParserUtilBase;
 import org.intellij.grammar.psi.*;
@@ -50,18 +49,27 @@ public class LivePreviewParser implements PsiParser {
 
   private final BnfFile myFile;
   private final LivePreviewLanguage myLanguage;
-  private final Map<String,String> mySimpleTokens = ContainerUtil.newLinkedHashMap();
   private final Map<String, IElementType> myElementTypes = ContainerUtil.newTroveMap();
 
-  private GenOptions G;
+  // subclasses observe every node call via generateNodeCall, others follow the linked graph
+  private final boolean myLinked = getClass() == LivePreviewParser.class;
+  private LivePreviewGraph myGraph;
   private BnfRule myGrammarRoot;
-  private RuleGraphHelper myGraphHelper;
-  private ExpressionHelper myExpressionHelper;
   private MultiMap<BnfRule, BnfRule> myRuleExtendsMap;
-  private String myTokenTypeText;
 
-  private final TObjectIntHashMap<BnfRule> myRuleNumbers = new TObjectIntHashMap<BnfRule>();
-  private BitSet[] myBitSets;
+  // recovery predicates are resolved once per parser run, token sets are cached in the graph
+  private final Map<BnfRule, Parser> myAutoRecoverPredicates = ContainerUtil.newTroveMap();
+  private final Map<BnfRule, Parser> myRecoverPredicates = ContainerUtil.newTroveMap();
+
+  // rule node of a reparsed block, its own node is provided by the caller
+  private LivePreviewGraph.ExpressionNode myChameleonNode;
+
+  // statistics of the current run and the last token reached before a section rollback
+  private LivePreviewProfile myProfile;
+  private int myLastExitToken;
+
+  // (offset, rule id) pairs of the rules currently on the stack
+  private final TLongHashSet myActiveRules = new TLongHashSet();
 
   public LivePreviewParser(Project project, LivePreviewLanguage language) {
     myLanguage = language;
@@ -88,11 +96,29 @@ public class LivePreviewParser implements PsiParser {
     ContainerUtil.addIfNotNull(braces, tryMakeBracePair("[", "]", false));
     ContainerUtil.addIfNotNull(braces, tryMakeBracePair("<", ">", false));
     ErrorState.get(builder).braces = braces.isEmpty()? null : braces.toArray(new BracePair[braces.size()]);
+    // only complete parses are profiled, block reparses would replace the profile with a partial one
+    myProfile = myLinked && myGraph != null && !(root instanceof RuleElementType) ? new LivePreviewProfile() : null;
+    long start = System.nanoTime();
     int level = 0;
     PsiBuilder.Marker mark = enter_section_(builder, level, _NONE_, null);
-    boolean result = myGrammarRoot != null && rule(builder, 1, myGrammarRoot, Collections.<String, Parser>emptyMap());
+    boolean result;
+    if (root instanceof RuleElementType && myGraph != null && ((RuleElementType)root).rule.isValid()) {
+      // reparsed block contents, the block node itself is the root
+      BnfRule rule = ((RuleElementType)root).rule;
+      LivePreviewGraph.ExpressionNode ruleNode = myGraph.getNode(rule, rule.getExpression(), rule.getName());
+      myChameleonNode = ruleNode;
+      result = rule(builder, 1, rule, ruleNode, Collections.<String, Parser>emptyMap());
+    }
+    else {
+      result = myGrammarRoot != null && rule(builder, 1, myGrammarRoot, Collections.<String, Parser>emptyMap());
+    }
     exit_section_(builder, level, mark, root, result, true, TRUE_CONDITION);
-    return builder.getTreeBuilt();
+    ASTNode tree = builder.getTreeBuilt();
+    if (myProfile != null) {
+      myProfile.setTotalNanos(System.nanoTime() - start);
+      LivePreviewProfile.publish(myFile, myProfile);
+    }
+    return tree;
   }
 
   @Nullable
@@ -104,14 +130,9 @@ public class LivePreviewParser implements PsiParser {
 
   private void init(PsiBuilder builder) {
     if (myFile == null) return;
-    myGrammarRoot = ContainerUtil.getFirstItem(myFile.getRules());
-    G = new GenOptions(myFile);
-    mySimpleTokens.putAll(LivePreviewLexer.collectTokenPattern2Name(myFile, null));
-    myGraphHelper = RuleGraphHelper.getCached(myFile);
-    myRuleExtendsMap = myGraphHelper.getRuleExtendsMap();
-    myExpressionHelper = ExpressionHelper.getCached(myFile);
-
-    myTokenTypeText = getRootAttribute(myFile, KnownAttribute.ELEMENT_TYPE_PREFIX);
+    myGraph = LivePreviewGraph.getCached(myFile);
+    myGrammarRoot = myGraph.grammarRoot;
+    myRuleExtendsMap = myGraph.graphHelper.getRuleExtendsMap();
 
     Lexer lexer = ((PsiBuilderImpl)builder).getLexer();
     if (lexer instanceof LivePreviewLexer) {
@@ -119,32 +140,30 @@ public class LivePreviewParser implements PsiParser {
         myElementTypes.put(type.constantName, type.tokenType);
       }
     }
-    for (BnfRule rule : myFile.getRules()) {
-      String elementType = ParserGeneratorUtil.getElementType(rule, G.generateElementCase);
-      if (StringUtil.isEmpty(elementType)) continue;
+    for (Map.Entry<String, BnfRule> entry : myGraph.ruleElementTypes.entrySet()) {
+      String elementType = entry.getKey();
       if (myElementTypes.containsKey(elementType)) continue;
-      myElementTypes.put(elementType, new RuleElementType(elementType, rule, myLanguage));
-    }
-    int count = 0;
-    for (BnfRule rule : myFile.getRules()) {
-      myRuleNumbers.put(rule, count ++);
-    }
-    myBitSets = new BitSet[builder.getOriginalText().length()+1];
-    for (int i = 0; i < myBitSets.length; i++) {
-      myBitSets[i] = new BitSet(count);
+      BnfRule rule = entry.getValue();
+      myElementTypes.put(elementType, new RuleElementType(elementType, rule, myLanguage, myGraph.blockRules.get(rule)));
     }
+    myActiveRules.clear();
   }
 
   private boolean rule(PsiBuilder builder, int level, BnfRule rule, Map<String, Parser> externalArguments) {
-    BitSet bitSet = myBitSets[builder.getCurrentOffset()];
-    int ruleNumber = myRuleNumbers.get(rule);
-    if (bitSet.get(ruleNumber)) {
+    return rule(builder, level, rule, myGraph.getNode(rule, rule.getExpression(), rule.getName()), externalArguments);
+  }
+
+  private boolean rule(PsiBuilder builder, int level, BnfRule rule, LivePreviewGraph.ExpressionNode ruleNode, Map<String, Parser> externalArguments) {
+    long key = ((long)builder.getCurrentOffset() << 32) | (myGraph.graphHelper.getRuleId(rule) & 0xffffffffL);
+    if (!myActiveRules.add(key)) {
       builder.error("Endless recursion detected for '" + rule.getName() + "'");
       return false;
     }
-    bitSet.set(ruleNumber);
-    boolean result = expression(builder, level, rule, rule.getExpression(), rule.getName(), externalArguments);
-    bitSet.clear(ruleNumber);
+    int startToken = myProfile == null ? 0 : builder.rawTokenIndex();
+    LivePreviewProfile.Stats stats = myProfile == null ? null : myProfile.enterRule(rule);
+    boolean result = expression(builder, level, rule, ruleNode, externalArguments);
+    if (stats != null) myProfile.exitRule(stats, result, myLastExitToken - startToken);
+    myActiveRules.remove(key);
     return result;
   }
 
@@ -154,111 +173,93 @@ public class LivePreviewParser implements PsiParser {
                                BnfExpression initialNode,
                                String funcName,
                                Map<String, Parser> externalArguments) {
-    boolean isRule = initialNode.getParent() == rule;
-    BnfExpression node = getNonTrivialNode(initialNode);
-
-    IElementType type = getEffectiveType(node);
-
-    boolean firstNonTrivial = node == ParserGeneratorUtil.Rule.firstNotTrivial(rule);
-    boolean isPrivate = !(isRule || firstNonTrivial) || ParserGeneratorUtil.Rule.isPrivate(rule) || myGrammarRoot == rule;
-    boolean isLeft = firstNonTrivial && ParserGeneratorUtil.Rule.isLeft(rule);
-    boolean isLeftInner = isLeft && (isPrivate || ParserGeneratorUtil.Rule.isInner(rule));
-    boolean isBranch = !isPrivate && Rule.isUpper(rule);
-    String recoverWhile = firstNonTrivial ? getAttribute(rule, KnownAttribute.RECOVER_WHILE) : null;
-    boolean canCollapse = !isPrivate && (!isLeft || isLeftInner) && firstNonTrivial && myGraphHelper.canCollapse(rule);
-
-    IElementType elementType = getElementType(rule);
-
-    List<BnfExpression> children;
-    if (node instanceof BnfReferenceOrToken || node instanceof BnfLiteralExpression || node instanceof BnfExternalExpression) {
-      children = Collections.singletonList(node);
-      if (isPrivate && !isLeftInner && recoverWhile == null) {
-        return generateNodeCall(builder, level, rule, node, getNextName(funcName, 0), externalArguments);
+    return expression(builder, level, rule, myGraph.getNode(rule, initialNode, funcName), externalArguments);
+  }
+
+  private boolean expression(PsiBuilder builder, int level, BnfRule rule, LivePreviewGraph.ExpressionNode n, Map<String, Parser> externalArguments) {
+    if (myProfile == null) return expressionImpl(builder, level, rule, n, externalArguments);
+    LivePreviewProfile.Stats stats = myProfile.expressionStats(rule, n.node);
+    stats.enter();
+    int startToken = builder.rawTokenIndex();
+    myLastExitToken = startToken;
+    boolean result = expressionImpl(builder, level, rule, n, externalArguments);
+    stats.exit(result, myLastExitToken - startToken);
+    return result;
+  }
+
+  private boolean expressionImpl(PsiBuilder builder, int level, final BnfRule rule, LivePreviewGraph.ExpressionNode n, Map<String, Parser> externalArguments) {
+    String funcName = n.funcName;
+    IElementType type = n.type;
+    boolean isPrivate = n.isPrivate;
+    String recoverWhile = n.recoverWhile;
+    IElementType elementType = n.elementType == null || n == myChameleonNode ? null : getElementType(n.elementType);
+    if (n == myChameleonNode) myChameleonNode = null;
+    List<BnfExpression> children = n.children;
+
+    if (n.directCall) {
+      return callChild(builder, level, rule, n, 0, externalArguments);
+    }
+    if (children.isEmpty() && recoverWhile == null) {
+      if (isPrivate || elementType == null) {
+        return true;
       }
       else {
-        type = BNF_SEQUENCE;
-      }
-    }
-    else {
-      children = getChildExpressions(node);
-      if (children.isEmpty() && recoverWhile == null) {
-        if (isPrivate || elementType == null) {
-          return true;
-        }
-        else {
-          builder.mark().done(elementType);
-          return true;
-        }
+        builder.mark().done(elementType);
+        return true;
       }
     }
     if (!recursion_guard_(builder, level, funcName)) return false;
 
-    String frameName = firstNonTrivial && !Rule.isMeta(rule)? getRuleDisplayName(rule, !isPrivate) : null;
-    //if (recoverRoot == null && (isRule || firstNonTrivial)) {
-    //  frameName = generateFirstCheck(rule, frameName, true);
-    //}
-
-    PinMatcher pinMatcher = new PinMatcher(rule, type, firstNonTrivial ? rule.getName() : funcName);
     boolean pinApplied = false;
-    boolean alwaysTrue = type == BNF_OP_OPT || type == BNF_OP_ZEROMORE;
+    boolean alwaysTrue = n.alwaysTrue;
 
     boolean result_ = type == BNF_OP_ZEROMORE || type == BNF_OP_OPT || children.isEmpty();
-    boolean pinned = pinMatcher.active();
     boolean pinned_ = false;
 
-    int modifiers = 0;
-    if (canCollapse) modifiers |= _COLLAPSE_;
-    if (isLeftInner) modifiers |= _LEFT_INNER_;
-    else if (isLeft) modifiers |= _LEFT_;
-    if (type == BNF_OP_AND) modifiers |= _AND_;
-    else if (type == BNF_OP_NOT) modifiers |= _NOT_;
-    if (isBranch) modifiers |= _UPPER_;
-
     PsiBuilder.Marker marker_ = null;
-    boolean sectionRequired = !alwaysTrue || !isPrivate || isLeft || recoverWhile != null;
-    boolean sectionRequiredSimple = sectionRequired && modifiers == _NONE_ && recoverWhile == null && !(modifiers == 0 && (pinned || frameName != null));
+    boolean sectionRequired = n.sectionRequired;
+    boolean sectionRequiredSimple = n.sectionRequiredSimple;
     if (sectionRequiredSimple) {
       marker_ = enter_section_(builder);
     }
     else if (sectionRequired) {
-      marker_ = enter_section_(builder, level, modifiers, isPrivate ? null : elementType, frameName);
+      marker_ = enter_section_(builder, level, n.modifiers, isPrivate ? null : elementType, n.frameName);
     }
 
     boolean predicateEncountered = false;
     int[] skip = {0};
     for (int i = 0, p = 0, childrenSize = children.size(); i < childrenSize; i++) {
-      BnfExpression child = children.get(i);
 
       if (type == BNF_CHOICE) {
-        if (i == 0) result_ = generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
-        else if (!result_) result_ = generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+        if (i == 0) result_ = callChild(builder, level, rule, n, i, externalArguments);
+        else if (!result_) result_ = callChild(builder, level, rule, n, i, externalArguments);
       }
       else if (type == BNF_SEQUENCE) {
-        predicateEncountered |= pinApplied && ParserGeneratorUtil.getEffectiveExpression(myFile, child) instanceof BnfPredicate;
+        predicateEncountered |= pinApplied && n.predicates[i];
         if (skip[0] == 0) {
           if (i == 0) {
-            result_ = generateTokenSequenceCall(builder, level, rule, children, funcName, i, pinMatcher, pinApplied, skip, externalArguments);
+            result_ = generateTokenSequenceCall(builder, level, rule, n, i, pinApplied, skip, externalArguments);
           }
           else {
-            if (pinApplied && G.generateExtendedPin && !predicateEncountered) {
+            if (pinApplied && myGraph.G.generateExtendedPin && !predicateEncountered) {
               if (i == childrenSize - 1) {
                 // do not report error for last child
                 if (i == p + 1) {
-                  result_ = result_ && generateTokenSequenceCall(builder, level, rule, children, funcName, i, pinMatcher, pinApplied, skip, externalArguments);
+                  result_ = result_ && generateTokenSequenceCall(builder, level, rule, n, i, pinApplied, skip, externalArguments);
                 }
                 else {
-                  result_ = pinned_ && generateTokenSequenceCall(builder, level, rule, children, funcName, i, pinMatcher, pinApplied, skip, externalArguments) && result_;
+                  result_ = pinned_ && generateTokenSequenceCall(builder, level, rule, n, i, pinApplied, skip, externalArguments) && result_;
                 }
               }
               else if (i == p + 1) {
-                result_ = result_ && report_error_(builder, generateTokenSequenceCall(builder, level, rule, children, funcName, i, pinMatcher, pinApplied, skip, externalArguments));
+                result_ = result_ && report_error_(builder, generateTokenSequenceCall(builder, level, rule, n, i, pinApplied, skip, externalArguments));
               }
               else {
-                result_ = pinned_ && report_error_(builder, generateTokenSequenceCall(builder, level, rule, children, funcName, i, pinMatcher, pinApplied, skip, externalArguments)) && result_;
+                result_ = pinned_ && report_error_(builder, generateTokenSequenceCall(builder, level, rule, n, i, pinApplied, skip, externalArguments)) && result_;
               }
             }
             else {
-              result_ = result_ && generateTokenSequenceCall(builder, level, rule, children, funcName, i, pinMatcher, pinApplied, skip, externalArguments);
+              result_ = result_ && generateTokenSequenceCall(builder, level, rule, n, i, pinApplied, skip, externalArguments);
             }
           }
         }
@@ -266,63 +267,48 @@ public class LivePreviewParser implements PsiParser {
           skip[0]--; // we are inside already generated token sequence
           if (pinApplied && i == p + 1) p++; // shift pinned index as we skip
         }
-        if (!pinApplied && pinMatcher.matches(i, child)) {
+        if (!pinApplied && n.pinMatches[i]) {
           pinApplied = true;
           p = i;
           pinned_ = result_; // pin = pinMatcher.pinValue
         }
       }
       else if (type == BNF_OP_OPT) {
-        generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+        callChild(builder, level, rule, n, i, externalArguments);
       }
       else if (type == BNF_OP_ONEMORE || type == BNF_OP_ZEROMORE) {
         if (type == BNF_OP_ONEMORE) {
-          result_ = generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+          result_ = callChild(builder, level, rule, n, i, externalArguments);
         }
         int pos = current_position_(builder);
         //noinspection LoopConditionNotUpdatedInsideLoop
         while (alwaysTrue || result_) {
-          if (!generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments)) break;
+          if (!callChild(builder, level, rule, n, i, externalArguments)) break;
           if (!empty_element_parsed_guard_(builder, funcName, pos)) break;
           pos = current_position_(builder);
         }
       }
       else if (type == BNF_OP_AND) {
-        result_ = generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+        result_ = callChild(builder, level, rule, n, i, externalArguments);
       }
       else if (type == BNF_OP_NOT) {
-        result_ = !generateNodeCall(builder, level, rule, child, getNextName(funcName, i), externalArguments);
+        result_ = !callChild(builder, level, rule, n, i, externalArguments);
       }
       else {
         addWarning(myFile.getProject(), "unexpected: " + type);
       }
     }
 
+    int lastToken = myProfile == null ? 0 : builder.rawTokenIndex();
     if (sectionRequiredSimple) {
       exit_section_(builder, marker_, isPrivate? null : elementType, alwaysTrue || result_);
     }
     else if (sectionRequired) {
-      Parser recoverPredicate;
-      final BnfRule recoverRule = recoverWhile != null ? myFile.getRule(recoverWhile) : null;
-      if (BnfConstants.RECOVER_AUTO.equals(recoverWhile)) {
-        final IElementType[] nextTokens = generateAutoRecoverCall(rule);
-        recoverPredicate = new Parser() {
-          @Override
-          public boolean parse(PsiBuilder builder, int level) {
-            return !GeneratedParserUtilBase.nextTokenIsFast(builder, nextTokens);
-          }
-        };
-      }
-      else {
-        recoverPredicate = recoverRule == null ? null : new Parser() {
-          @Override
-          public boolean parse(PsiBuilder builder, int level) {
-            return rule(builder, level, recoverRule, Collections.<String, Parser>emptyMap());
-          }
-        };
-      }
+      Parser recoverPredicate = recoverWhile == null ? null : getRecoverPredicate(rule, n);
       exit_section_(builder, level, marker_, alwaysTrue || result_, pinned_, recoverPredicate);
     }
+    // recovery predicates may call other rules while exiting
+    if (myProfile != null) myLastExitToken = lastToken;
 
     return alwaysTrue || result_ || pinned_;
   }
@@ -340,102 +326,89 @@ public class LivePreviewParser implements PsiParser {
   }
 
 
+  private boolean callChild(PsiBuilder builder, int level, BnfRule rule, LivePreviewGraph.ExpressionNode n, int i, Map<String, Parser> externalArguments) {
+    if (!myLinked) return generateNodeCall(builder, level, rule, n.children.get(i), n.childNames[i], externalArguments);
+    return generateNodeCall(builder, level, rule, n.getChildCall(i), externalArguments);
+  }
+
   protected boolean generateNodeCall(PsiBuilder builder, int level, BnfRule rule, @Nullable BnfExpression node, String nextName, Map<String, Parser> externalArguments) {
-    IElementType type = node == null ? BNF_REFERENCE_OR_TOKEN : getEffectiveType(node);
-    String text = node == null ? nextName : node.getText();
+    return generateNodeCall(builder, level, rule, myGraph.getCall(rule, node, nextName), externalArguments);
+  }
+
+  private boolean generateNodeCall(PsiBuilder builder, int level, BnfRule rule, LivePreviewGraph.NodeCall call, Map<String, Parser> externalArguments) {
+    IElementType type = call.type;
     if (type == BNF_STRING) {
-      String value = StringUtil.stripQuotesAroundValue(text);
-      String attributeName = getTokenName(value);
-      if (attributeName != null) {
-        return generateConsumeToken(builder, attributeName);
+      if (call.tokenName != null) {
+        return generateConsumeToken(builder, call.tokenName);
       }
-      return generateConsumeTextToken(builder, value);
+      return generateConsumeTextToken(builder, call.text);
     }
     else if (type == BNF_NUMBER) {
-      return generateConsumeTextToken(builder, text);
+      return generateConsumeTextToken(builder, call.text);
     }
     else if (type == BNF_REFERENCE_OR_TOKEN) {
-      BnfRule subRule = myFile.getRule(text);
+      BnfRule subRule = call.subRule;
       if (subRule != null) {
-        //String method;
         if (Rule.isExternal(subRule)) {
           // not supported
           return false;
-          //method = generateExternalCall(rule, clause, GrammarUtil.getExternalRuleExpressions(subRule), nextName);
-          //return method + "(builder_, level_ + 1" + clause.toString() + ")";
+        }
+        else if (call.info == null) {
+          return rule(builder, level + 1, subRule, call.getTarget(), externalArguments);
         }
         else {
-          ExpressionHelper.ExpressionInfo info = ExpressionGeneratorHelper.getInfoForExpressionParsing(myExpressionHelper, subRule);
-          if (info == null) {
-            return rule(builder, level + 1, subRule, externalArguments);
-          }
-          else {
-            int priority = info.getPriority(rule);
-            int arg1Priority = subRule == info.rootRule ? -1 : info.getPriority(subRule);
-            int argPriority = arg1Priority == -1 ? (priority == info.nextPriority - 1 ? -1 : priority) : arg1Priority - 1;
-            return generateExpressionRoot(builder, level, info, argPriority);
-          }
+          return generateExpressionRoot(builder, level, call.info, call.argPriority);
         }
       }
-      return generateConsumeToken(builder, text);
+      return generateConsumeToken(builder, call.text);
     }
     else if (type == BNF_EXTERNAL_EXPRESSION) {
-      List<BnfExpression> expressions = ((BnfExternalExpression)node).getExpressionList();
-      if (expressions.size() == 1 && Rule.isMeta(rule)) {
-        Parser parser = externalArguments.get(node.getText());
+      if (call.metaParameter) {
+        Parser parser = externalArguments.get(call.node.getText());
         return parser != null && parser.parse(builder, level);
       }
       else {
-        return generateExternalCall(builder, level, rule, expressions, nextName, externalArguments);
+        return generateExternalCall(builder, level, rule, call.expressions, call.nextName, externalArguments);
       }
     }
     else {
-      return expression(builder, level, rule, node, nextName, externalArguments);
+      return expression(builder, level, rule, call.getTarget(), externalArguments);
     }
   }
 
   private boolean generateTokenSequenceCall(PsiBuilder builder,
                                             int level,
                                             BnfRule rule,
-                                            List<BnfExpression> children,
-                                            String funcName,
+                                            LivePreviewGraph.ExpressionNode n,
                                             int startIndex,
-                                            PinMatcher pinMatcher,
                                             boolean pinApplied,
                                             int[] skip,
                                             Map<String, Parser> externalArguments) {
-    BnfExpression nextChild = children.get(startIndex);
-    if (startIndex == children.size() - 1 || !isTokenExpression(nextChild)) {
-      return generateNodeCall(builder, level, rule, nextChild, funcName, externalArguments);
+    List<BnfExpression> children = n.children;
+    if (startIndex == children.size() - 1 || !n.tokenExpressions[startIndex]) {
+      return callSequenceChild(builder, level, rule, n, startIndex, externalArguments);
     }
     ArrayList<IElementType> list = new ArrayList<IElementType>();
     int pin = pinApplied ? -1 : 0;
     for (int i = startIndex, len = children.size(); i < len; i++) {
-      BnfExpression child = children.get(i);
-      IElementType type = child.getNode().getElementType();
-      String text = child.getText();
-      String tokenName;
-      if (type == BNF_STRING && text.charAt(0) != '\"') {
-        tokenName = getTokenName(StringUtil.stripQuotesAroundValue(text));
-      }
-      else if (type == BNF_REFERENCE_OR_TOKEN && myFile.getRule(text) == null) {
-        tokenName = text;
-      }
-      else {
-        break;
-      }
-      list.add(getTokenElementType(tokenName));
-      if (!pinApplied && pinMatcher.matches(i, child)) {
+      if (!n.isTokenLike[i]) break;
+      list.add(getTokenElementType(n.tokenNames[i]));
+      if (!pinApplied && n.pinMatches[i]) {
         pin = i - startIndex + 1;
       }
     }
     if (list.size() < 2) {
-      return generateNodeCall(builder, level, rule, nextChild, funcName, externalArguments);
+      return callSequenceChild(builder, level, rule, n, startIndex, externalArguments);
     }
     skip[0] = list.size() - 1;
     return consumeTokens(builder, pin, list.toArray(new IElementType[list.size()]));
   }
 
+  private boolean callSequenceChild(PsiBuilder builder, int level, BnfRule rule, LivePreviewGraph.ExpressionNode n, int i, Map<String, Parser> externalArguments) {
+    if (!myLinked) return generateNodeCall(builder, level, rule, n.children.get(i), n.funcName, externalArguments);
+    return generateNodeCall(builder, level, rule, n.getSequenceCall(i), externalArguments);
+  }
+
   private boolean generateExternalCall(PsiBuilder builder,
                                        int level,
                                        final BnfRule rule,
@@ -543,12 +516,12 @@ public class LivePreviewParser implements PsiParser {
   }
 
   private String getTokenName(String value) {
-    return mySimpleTokens.get(value);
+    return myGraph.getTokenName(value);
   }
 
   @Nullable
   private IElementType getElementType(BnfRule rule) {
-    String elementType = ParserGeneratorUtil.getElementType(rule, G.generateElementCase);
+    String elementType = ParserGeneratorUtil.getElementType(rule, myGraph.G.generateElementCase);
     if (StringUtil.isEmpty(elementType)) return null;
     return getElementType(elementType);
   }
@@ -571,45 +544,59 @@ public class LivePreviewParser implements PsiParser {
   }
 
   private IElementType getTokenElementType(String token) {
-    return token == null? null : getElementType(myTokenTypeText + token.toUpperCase());
+    return token == null? null : getElementType(myGraph.tokenTypeText + token.toUpperCase());
   }
 
   protected boolean isTokenExpression(BnfExpression node) {
-    return node instanceof BnfLiteralExpression || node instanceof BnfReferenceOrToken && myFile.getRule(node.getText()) == null;
+    return myGraph.isTokenExpression(node);
   }
 
-  public static class RuleElementType extends IElementType {
+  /**
+   * Element type of a rule node. Nodes of block rules, i.e. {@code '{' ... '}'}-like rules,
+   * are reparsed separately when a change stays inside the braces.
+   */
+  public static class RuleElementType extends IReparseableElementType {
     public final BnfRule rule;
+    private final String[] myBraces;
 
-    RuleElementType(String elementType, BnfRule rule, Language language) {
+    RuleElementType(String elementType, BnfRule rule, Language language, @Nullable String[] braces) {
       super(elementType, language, false);
       this.rule = rule;
+      myBraces = braces;
     }
 
+    @Override
+    public boolean isParsable(CharSequence buffer, Language fileLanguage, Project project) {
+      if (myBraces == null || !rule.isValid() || !(getLanguage() instanceof LivePreviewLanguage)) return false;
+      // the preview lexer is stateless so the block is lexed the same way as in the whole file
+      Lexer lexer = new LivePreviewLexer(project, (LivePreviewLanguage)getLanguage());
+      lexer.start(buffer);
+      if (!StringUtil.equals(lexer.getBufferSequence().subSequence(lexer.getTokenStart(), lexer.getTokenEnd()), myBraces[0])) {
+        return false;
+      }
+      int depth = 0;
+      for (; lexer.getTokenType() != null; lexer.advance()) {
+        if (depth == 0 && lexer.getTokenStart() > 0) return false; // text after the closing brace
+        CharSequence text = buffer.subSequence(lexer.getTokenStart(), lexer.getTokenEnd());
+        if (StringUtil.equals(text, myBraces[0])) depth++;
+        else if (StringUtil.equals(text, myBraces[1])) depth--;
+      }
+      return depth == 0;
+    }
   }
 
   // Expression Generator Helper part
   private boolean generateExpressionRoot(PsiBuilder builder, int level, ExpressionHelper.ExpressionInfo info, int priority_) {
-    Map<String, List<ExpressionHelper.OperatorInfo>> opCalls = new LinkedHashMap<String, List<ExpressionHelper.OperatorInfo>>();
-    for (BnfRule rule : info.priorityMap.keySet()) {
-      ExpressionHelper.OperatorInfo operator = info.operatorMap.get(rule);
-      String opCall = getNextName(operator.rule.getName(), 0);
-      List<ExpressionHelper.OperatorInfo> list = opCalls.get(opCall);
-      if (list == null) opCalls.put(opCall, list = new ArrayList<ExpressionHelper.OperatorInfo>(2));
-      list.add(operator);
-    }
+    LivePreviewGraph.ExpressionRoot root = myGraph.getExpressionRoot(info);
     // main entry
-    String methodName = info.rootRule.getName();
-    String kernelMethodName = getNextName(methodName, 0);
-    String frameName = quote(ParserGeneratorUtil.getRuleDisplayName(info.rootRule, true));
-    if (!recursion_guard_(builder, level, methodName)) return false;
+    if (!recursion_guard_(builder, level, root.methodName)) return false;
     //g.generateFirstCheck(info.rootRule, frameName, true);
     boolean result_ = false;
     boolean pinned_;
-    PsiBuilder.Marker marker_ = enter_section_(builder, level, _NONE_, frameName);
+    PsiBuilder.Marker marker_ = enter_section_(builder, level, _NONE_, root.frameName);
 
     boolean first = true;
-    for (ExpressionHelper.OperatorInfo operator : filter(opCalls, ExpressionHelper.OperatorType.ATOM, ExpressionHelper.OperatorType.PREFIX)) {
+    for (ExpressionHelper.OperatorInfo operator : root.prefixOperators) {
       if (first || !result_) {
         result_ = generateNodeCall(builder, level, operator.rule, null, operator.rule.getName(), Collections.<String, Parser>emptyMap());
       }
@@ -617,17 +604,17 @@ public class LivePreviewParser implements PsiParser {
     }
 
     pinned_ = result_;
-    result_ = result_ && generateKernelMethod(builder, level + 1, kernelMethodName, info, opCalls, priority_);
+    result_ = result_ && generateKernelMethod(builder, level + 1, root, info, priority_);
     exit_section_(builder, level, marker_, null, result_, pinned_, null);
     return result_ || pinned_;
   }
 
   private boolean generateKernelMethod(PsiBuilder builder,
                                       int level,
-                                      String methodName,
+                                      LivePreviewGraph.ExpressionRoot root,
                                       ExpressionHelper.ExpressionInfo info,
-                                      Map<String, List<ExpressionHelper.OperatorInfo>> opCalls,
                                       int priority_) {
+    String methodName = root.kernelMethodName;
     if (!recursion_guard_(builder, level, methodName)) return false;
     PsiBuilder.Marker marker_ = null;
     boolean result_ = true;
@@ -637,28 +624,29 @@ public class LivePreviewParser implements PsiParser {
       PsiBuilder.Marker left_marker_ = (PsiBuilder.Marker)builder.getLatestDoneMarker();
       if (!invalid_left_marker_guard_(builder, left_marker_, methodName)) return false;
 
-      for (ExpressionHelper.OperatorInfo operator : filter(opCalls, ExpressionHelper.OperatorType.BINARY, ExpressionHelper.OperatorType.N_ARY, ExpressionHelper.OperatorType.POSTFIX)) {
+      for (ExpressionHelper.OperatorInfo operator : root.suffixOperators) {
         int priority = info.getPriority(operator.rule);
         int arg2Priority = operator.arg2 == null ? -1 : info.getPriority(operator.arg2);
         int argPriority = arg2Priority == -1 ? priority : arg2Priority - 1;
+        String[] names = root.operatorNames.get(operator);
 
         if (marker_ == null) marker_ = builder.mark();
 
         if (priority_ <  priority &&
             (operator.arg1 == null || ((LighterASTNode)left_marker_).getTokenType() == getElementType(operator.arg1)) &&
-            generateNodeCall(builder, level, info.rootRule, operator.operator, getNextName(operator.rule.getName(), 0), Collections.<String, Parser>emptyMap())) {
+            generateNodeCall(builder, level, info.rootRule, operator.operator, names[0], Collections.<String, Parser>emptyMap())) {
 
           IElementType elementType = getElementType(operator.rule);
           boolean rightAssociative = ParserGeneratorUtil.getAttribute(operator.rule, KnownAttribute.RIGHT_ASSOCIATIVE);
           if (operator.type == ExpressionHelper.OperatorType.BINARY) {
               result_ = report_error_(builder, generateExpressionRoot(builder, level, info, (rightAssociative ? argPriority - 1 : argPriority)));
-            if (operator.tail != null) result_ = report_error_(builder, generateNodeCall(builder, level, operator.rule, operator.tail, getNextName(operator.rule.getName(), 1), Collections.<String, Parser>emptyMap())) && result_;
+            if (operator.tail != null) result_ = report_error_(builder, generateNodeCall(builder, level, operator.rule, operator.tail, names[1], Collections.<String, Parser>emptyMap())) && result_;
           }
           else if (operator.type == ExpressionHelper.OperatorType.N_ARY) {
             while (true) {
               result_ = report_error_(builder, generateExpressionRoot(builder, level, info, argPriority));
-              if (operator.tail != null) result_ = report_error_(builder, generateNodeCall(builder, level, operator.rule, operator.tail, getNextName(operator.rule.getName(), 1), Collections.<String, Parser>emptyMap())) && result_;
-              if (!result_ || !generateNodeCall(builder, level, info.rootRule, operator.operator, getNextName(operator.rule.getName(), 0), Collections.<String, Parser>emptyMap())) break;
+              if (operator.tail != null) result_ = report_error_(builder, generateNodeCall(builder, level, operator.rule, operator.tail, names[1], Collections.<String, Parser>emptyMap())) && result_;
+              if (!result_ || !generateNodeCall(builder, level, info.rootRule, operator.operator, names[0], Collections.<String, Parser>emptyMap())) break;
             }
           }
           else if (operator.type == ExpressionHelper.OperatorType.POSTFIX) {
@@ -678,40 +666,45 @@ public class LivePreviewParser implements PsiParser {
     return result_;
   }
 
-  private static Iterable<ExpressionHelper.OperatorInfo> filter(final Map<String, List<ExpressionHelper.OperatorInfo>> opCalls,
-                                                                final ExpressionHelper.OperatorType... operatorTypes) {
-    return ContainerUtil.mapNotNull(opCalls.keySet(), new NullableFunction<String, ExpressionHelper.OperatorInfo>() {
-      @Nullable
-      @Override
-      public ExpressionHelper.OperatorInfo fun(String opCall) {
-        return ContainerUtil.getFirstItem(ExpressionGeneratorHelper.findOperators(opCalls.get(opCall), operatorTypes));
+  @Nullable
+  private Parser getRecoverPredicate(BnfRule rule, LivePreviewGraph.ExpressionNode n) {
+    if (BnfConstants.RECOVER_AUTO.equals(n.recoverWhile)) {
+      Parser predicate = myAutoRecoverPredicates.get(rule);
+      if (predicate == null) {
+        myAutoRecoverPredicates.put(rule, predicate = generateAutoRecoverCall(rule));
       }
-    });
+      return predicate;
+    }
+    final BnfRule recoverRule = n.recoverRule;
+    if (recoverRule == null) return null;
+    Parser predicate = myRecoverPredicates.get(recoverRule);
+    if (predicate == null) {
+      myRecoverPredicates.put(recoverRule, predicate = new Parser() {
+        @Override
+        public boolean parse(PsiBuilder builder, int level) {
+          return rule(builder, level, recoverRule, Collections.<String, Parser>emptyMap());
+        }
+      });
+    }
+    return predicate;
   }
 
-  /**
-   * @noinspection StringEquality
-   */
-  private IElementType[] generateAutoRecoverCall(BnfRule rule) {
-    BnfFirstNextAnalyzer analyzer = new BnfFirstNextAnalyzer();
-    Set<BnfExpression> nextExprSet = analyzer.calcNext(rule).keySet();
-    Set<String> nextSet = analyzer.asStrings(nextExprSet);
-    List<IElementType> tokenTypes = new ArrayList<IElementType>(nextSet.size());
-
-    for (String s : nextSet) {
-      if (myFile.getRule(s) != null) continue; // ignore left recursion
-      if (s == BnfFirstNextAnalyzer.MATCHES_EOF || s == BnfFirstNextAnalyzer.MATCHES_NOTHING) continue;
-
-      boolean unknown = s == BnfFirstNextAnalyzer.MATCHES_ANY;
-      IElementType t = unknown ? null : getTokenElementType(getTokenName(StringUtil.stripQuotesAroundValue(s)));
-      if (t != null) {
-        tokenTypes.add(t);
-      }
-      else {
-        tokenTypes.clear();
+  private Parser generateAutoRecoverCall(BnfRule rule) {
+    String[] tokenNames = myGraph.getAutoRecoverTokens(rule);
+    IElementType[] tokenTypes = new IElementType[tokenNames.length];
+    for (int i = 0; i < tokenNames.length; i++) {
+      tokenTypes[i] = getTokenElementType(tokenNames[i]);
+      if (tokenTypes[i] == null) {
+        tokenTypes = IElementType.EMPTY_ARRAY;
         break;
       }
     }
-    return tokenTypes.toArray(new IElementType[tokenTypes.size()]);
+    final IElementType[] nextTokens = tokenTypes;
+    return new Parser() {
+      @Override
+      public boolean parse(PsiBuilder builder, int level) {
+        return !GeneratedParserUtilBase.nextTokenIsFast(builder, nextTokens);
+      }
+    };
   }
 }
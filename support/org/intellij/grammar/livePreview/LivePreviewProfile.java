@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011-2016 Gregory Shrago
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.intellij.grammar.livePreview;
+
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.psi.PsiElement;
+import com.intellij.util.containers.ContainerUtil;
+import org.intellij.grammar.generator.ParserGeneratorUtil;
+import org.intellij.grammar.psi.BnfExpression;
+import org.intellij.grammar.psi.BnfFile;
+import org.intellij.grammar.psi.BnfRule;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-rule and per-expression statistics of the last complete live preview parse of a grammar.
+ * Time is inclusive, recursive invocations are counted once. Rules also get self time
+ * that excludes the time spent in other rules.
+ *
+ * @author gregsh
+ */
+public class LivePreviewProfile {
+
+  public static final int WARM_PERCENT = 5;
+  public static final int HOT_PERCENT = 25;
+
+  private static final Key<LivePreviewProfile> LIVE_PREVIEW_PROFILE = Key.create("LIVE_PREVIEW_PROFILE");
+
+  @Nullable
+  public static LivePreviewProfile getProfile(@NotNull BnfFile file) {
+    return file.getUserData(LIVE_PREVIEW_PROFILE);
+  }
+
+  static void publish(@NotNull final BnfFile file, @NotNull LivePreviewProfile profile) {
+    LivePreviewProfile previous = file.getUserData(LIVE_PREVIEW_PROFILE);
+    file.putUserData(LIVE_PREVIEW_PROFILE, profile);
+    // timings differ on every parse, gutter markers change only with the set of warm and hot rules
+    Map<BnfRule, Boolean> previousRules = previous == null ? Collections.<BnfRule, Boolean>emptyMap() : previous.getMarkedRules();
+    if (previousRules.equals(profile.getMarkedRules())) return;
+    final Project project = file.getProject();
+    ApplicationManager.getApplication().invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        if (file.isValid()) DaemonCodeAnalyzer.getInstance(project).restart(file);
+      }
+    }, project.getDisposed());
+  }
+
+  static void release(@NotNull BnfFile file) {
+    file.putUserData(LIVE_PREVIEW_PROFILE, null);
+  }
+
+  private final Map<BnfRule, Stats> myRules = ContainerUtil.newTroveMap();
+  private final Map<BnfExpression, Stats> myExpressions = ContainerUtil.newTroveMap();
+  private long myTotalNanos;
+  // {start, nanos spent in nested rules} per active rule call
+  private final List<long[]> myRuleFrames = ContainerUtil.newArrayList();
+
+  @Nullable
+  public Stats getStats(@NotNull BnfRule rule) {
+    return myRules.get(rule);
+  }
+
+  /**
+   * @return the most expensive sub-expressions of the rule
+   */
+  @NotNull
+  public List<Stats> getExpressionStats(@NotNull BnfRule rule, int limit) {
+    List<Stats> result = ContainerUtil.newArrayList();
+    BnfExpression root = ParserGeneratorUtil.getNonTrivialNode(rule.getExpression());
+    for (Stats stats : myExpressions.values()) {
+      if (stats.rule == rule && stats.element != root) result.add(stats);
+    }
+    ContainerUtil.sort(result, new Comparator<Stats>() {
+      @Override
+      public int compare(Stats o1, Stats o2) {
+        return o1.nanos < o2.nanos ? 1 : o1.nanos == o2.nanos ? 0 : -1;
+      }
+    });
+    return result.size() > limit ? result.subList(0, limit) : result;
+  }
+
+  public long getTotalNanos() {
+    return myTotalNanos;
+  }
+
+  /**
+   * @return self time of a rule in percents of the whole parse
+   */
+  public int getPercent(@NotNull Stats stats) {
+    return myTotalNanos <= 0 ? 0 : (int)(stats.selfNanos * 100 / myTotalNanos);
+  }
+
+  /**
+   * @return rules with at least {@link #WARM_PERCENT} self time mapped to whether they are hot
+   */
+  @NotNull
+  Map<BnfRule, Boolean> getMarkedRules() {
+    Map<BnfRule, Boolean> result = ContainerUtil.newTroveMap();
+    for (Stats stats : myRules.values()) {
+      int percent = getPercent(stats);
+      if (percent >= WARM_PERCENT) result.put(stats.rule, percent >= HOT_PERCENT);
+    }
+    return result;
+  }
+
+  void setTotalNanos(long nanos) {
+    myTotalNanos = nanos;
+  }
+
+  @NotNull
+  Stats enterRule(@NotNull BnfRule rule) {
+    Stats stats = myRules.get(rule);
+    if (stats == null) myRules.put(rule, stats = new Stats(rule, rule));
+    stats.enter();
+    myRuleFrames.add(new long[]{System.nanoTime(), 0});
+    return stats;
+  }
+
+  void exitRule(@NotNull Stats stats, boolean result, int rolledBack) {
+    long[] frame = myRuleFrames.remove(myRuleFrames.size() - 1);
+    long elapsed = System.nanoTime() - frame[0];
+    stats.selfNanos += elapsed - frame[1];
+    if (!myRuleFrames.isEmpty()) myRuleFrames.get(myRuleFrames.size() - 1)[1] += elapsed;
+    stats.exit(result, rolledBack);
+  }
+
+  @NotNull
+  Stats expressionStats(@NotNull BnfRule rule, @NotNull BnfExpression expression) {
+    Stats stats = myExpressions.get(expression);
+    if (stats == null) myExpressions.put(expression, stats = new Stats(rule, expression));
+    return stats;
+  }
+
+  public static class Stats {
+    public final BnfRule rule;
+    public final PsiElement element;
+
+    public int invocations;
+    public int failures;
+    public long rolledBackTokens;
+    public long nanos;
+    public long selfNanos;
+
+    private int myDepth;
+    private long myStart;
+
+    Stats(BnfRule rule, PsiElement element) {
+      this.rule = rule;
+      this.element = element;
+    }
+
+    void enter() {
+      invocations++;
+      if (myDepth++ == 0) myStart = System.nanoTime();
+    }
+
+    void exit(boolean result, int rolledBack) {
+      if (--myDepth == 0) nanos += System.nanoTime() - myStart;
+      if (!result) {
+        failures++;
+        rolledBackTokens += rolledBack;
+      }
+    }
+  }
+}
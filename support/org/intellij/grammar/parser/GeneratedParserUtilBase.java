@@ -239,6 +239,27 @@ public class GeneratedParserUtilBase {
     return false;
   }
 
+  public static boolean nextTokenIsFast(PsiBuilder builder, TokenSet tokens) {
+    IElementType tokenType = builder.getTokenType();
+    return tokenType != null && tokens.contains(tokenType);
+  }
+
+  public static boolean nextTokenIs(PsiBuilder builder, String frameName, TokenSet tokens) {
+    ErrorState state = ErrorState.get(builder);
+    if (state.completionState != null) return true;
+    boolean track = !state.suppressErrors && state.predicateCount < 2 && state.predicateSign;
+    if (!track) return nextTokenIsFast(builder, tokens);
+    if (StringUtil.isNotEmpty(frameName)) {
+      addVariantInner(state, builder.rawTokenIndex(), frameName);
+    }
+    else {
+      for (IElementType token : tokens.getTypes()) {
+        addVariant(builder, state, token);
+      }
+    }
+    return nextTokenIsFast(builder, tokens);
+  }
+
   public static boolean nextTokenIs(PsiBuilder builder, String frameName, IElementType... tokens) {
     ErrorState state = ErrorState.get(builder);
     if (state.completionState != null) return true;
@@ -25,6 +25,7 @@ import com.intellij.psi.util.CachedValueProvider;
 import com.intellij.psi.util.CachedValuesManager;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.containers.ContainerUtil;
+import gnu.trove.TObjectIntHashMap;
 import org.intellij.grammar.BnfFileType;
 import org.intellij.grammar.BnfLanguage;
 import org.intellij.grammar.KnownAttribute;
@@ -34,6 +35,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -48,7 +50,7 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
   
   private final CachedValue<Map<String, BnfRule>> myRules;
   private final CachedValue<List<BnfAttrs>> myGlobalAttributes;
-  private final CachedValue<Map<String, List<AttributeInfo>>> myAttributeValues;
+  private final CachedValue<AttributeTable> myAttributeValues;
 
   public BnfFileImpl(FileViewProvider fileViewProvider) {
     super(fileViewProvider, BnfLanguage.INSTANCE);
@@ -64,10 +66,10 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
         return Result.create(calcAttributes(), BnfFileImpl.this);
       }
     }, false);
-    myAttributeValues = CachedValuesManager.getManager(getProject()).createCachedValue(new CachedValueProvider<Map<String, List<AttributeInfo>>>() {
+    myAttributeValues = CachedValuesManager.getManager(getProject()).createCachedValue(new CachedValueProvider<AttributeTable>() {
       @Override
-      public Result<Map<String, List<AttributeInfo>>> compute() {
-        return Result.create(calcAttributeValues(), BnfFileImpl.this);
+      public Result<AttributeTable> compute() {
+        return Result.create(new AttributeTable(calcAttributeValues(), myRules.getValue().values()), BnfFileImpl.this);
       }
     }, false);
   }
@@ -106,8 +108,34 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
   private static final Pattern SUB_EXPRESSION = Pattern.compile(".*(_\\d+)+");
   @Nullable
   public <T> AttributeInfo findAttributeInfo(@Nullable BnfRule rule, @NotNull KnownAttribute<T> knownAttribute, @Nullable String match) {
-    List<AttributeInfo> list = myAttributeValues.getValue().get(knownAttribute.getName());
+    AttributeTable table = myAttributeValues.getValue();
+    List<AttributeInfo> list = table.values.get(knownAttribute.getName());
     if (list == null) return null;
+    AttributeInfo result;
+    // rule own name lookups are resolved once per file version
+    int ruleId = rule == null || match != null && !match.equals(rule.getName()) ? -1 : table.getRuleId(rule);
+    if (ruleId >= 0) {
+      AttributeInfo[] row = table.resolved[ruleId];
+      int attributeId = table.attributeIds.get(knownAttribute.getName());
+      result = row[attributeId];
+      if (result == null) {
+        result = resolveAttributeInfo(rule, list, null);
+        row[attributeId] = result = result == null ? NO_VALUE : result;
+      }
+      if (result == NO_VALUE) result = null;
+    }
+    else {
+      result = resolveAttributeInfo(rule, list, match);
+    }
+    if (result != null && result.pattern == null && match != null && SUB_EXPRESSION.matcher(match).matches()) {
+      // do not pin nested sequences
+      result = null;
+    }
+    return result;
+  }
+
+  @Nullable
+  private AttributeInfo resolveAttributeInfo(@Nullable BnfRule rule, @NotNull List<AttributeInfo> list, @Nullable String match) {
     BnfAttrs globalAttrs = rule == null? ContainerUtil.getFirstItem(getAttributes()) : null;
     int offset = rule == null ? globalAttrs == null? 0 : globalAttrs.getTextRange().getEndOffset() : rule.getTextRange().getEndOffset();
     if (offset == 0) return null;
@@ -120,15 +148,11 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
       AttributeInfo info = list.get(i);
       if (offset < info.offset || !info.global && ruleStartOffset > info.offset) continue;
       if (info.pattern == null ||
-          toMatch != null && info.pattern.matcher(toMatch).matches()) {
+          toMatch != null && info.matches(toMatch)) {
         result = info;
         break;
       }
     }
-    if (result != null && result.pattern == null && match != null && SUB_EXPRESSION.matcher(match).matches()) {
-      // do not pin nested sequences
-      result = null;
-    }
     return result;
   }
 
@@ -187,12 +211,38 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
     return result;
   }
 
+  private static final AttributeInfo NO_VALUE = new AttributeInfo(0, 0, false, null, null);
+
+  private static class AttributeTable {
+    final Map<String, List<AttributeInfo>> values;
+    final TObjectIntHashMap<String> attributeIds = new TObjectIntHashMap<String>();
+    final TObjectIntHashMap<BnfRule> ruleIds = new TObjectIntHashMap<BnfRule>();
+    // [rule id][attribute id], null if not resolved yet, NO_VALUE if there is no value
+    final AttributeInfo[][] resolved;
+
+    AttributeTable(Map<String, List<AttributeInfo>> values, Collection<BnfRule> rules) {
+      this.values = values;
+      for (String name : values.keySet()) {
+        attributeIds.put(name, attributeIds.size());
+      }
+      for (BnfRule rule : rules) {
+        ruleIds.put(rule, ruleIds.size());
+      }
+      resolved = new AttributeInfo[ruleIds.size()][attributeIds.size()];
+    }
+
+    int getRuleId(BnfRule rule) {
+      return ruleIds.containsKey(rule) ? ruleIds.get(rule) : -1;
+    }
+  }
+
   private static class AttributeInfo implements Comparable<AttributeInfo> {
     final int attrOffset;
     final int offset;
     final boolean global;
     final Pattern pattern;
     final Object value;
+    final Map<String, Boolean> matches;
 
     private AttributeInfo(int attrOffset, int offset, boolean global, Pattern pattern, Object value) {
       this.attrOffset = attrOffset;
@@ -200,6 +250,15 @@ public class BnfFileImpl extends PsiFileBase implements BnfFile {
       this.global = global;
       this.pattern = pattern;
       this.value = value;
+      this.matches = pattern == null ? null : ContainerUtil.<String, Boolean>newConcurrentMap();
+    }
+
+    boolean matches(String name) {
+      Boolean result = matches.get(name);
+      if (result == null) {
+        matches.put(name, result = pattern.matcher(name).matches());
+      }
+      return result;
     }
 
     @Override
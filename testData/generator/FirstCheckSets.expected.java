@@ -0,0 +1,121 @@
+// ---- FirstCheckSets.java -----------------
+// This is a generated file. Not intended for manual editing.
+package ;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilder.Marker;
+import static generated.GeneratedTypes.*;
+import static org.intellij.grammar.parser.GeneratedParserUtilBase.*;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.lang.PsiParser;
+import com.intellij.lang.LightPsiParser;
+
+@SuppressWarnings({"SimplifiableIfStatement", "UnusedAssignment"})
+public class FirstCheckSets implements PsiParser, LightPsiParser {
+
+  public ASTNode parse(IElementType root_, PsiBuilder builder_) {
+    parseLight(root_, builder_);
+    return builder_.getTreeBuilt();
+  }
+
+  public void parseLight(IElementType root_, PsiBuilder builder_) {
+    boolean result_;
+    builder_ = adapt_builder_(root_, builder_, this, null);
+    Marker marker_ = enter_section_(builder_, 0, _COLLAPSE_, null);
+    result_ = parse_root_(root_, builder_, 0);
+    exit_section_(builder_, 0, marker_, root_, result_, true, TRUE_CONDITION);
+  }
+
+  protected boolean parse_root_(IElementType root_, PsiBuilder builder_, int level_) {
+    return root(builder_, level_ + 1);
+  }
+
+  /* ********************************************************** */
+  // IF | ELSE | WHILE
+  public static boolean keyword(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "keyword")) return false;
+    if (!nextTokenIsFast(builder_, KEYWORD_FIRST_)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_, level_, _NONE_, KEYWORD, "<keyword>");
+    result_ = consumeTokenFast(builder_, IF);
+    if (!result_) result_ = consumeTokenFast(builder_, ELSE);
+    if (!result_) result_ = consumeTokenFast(builder_, WHILE);
+    exit_section_(builder_, level_, marker_, result_, false, null);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // NUMBER | STRING | CHAR
+  public static boolean literal(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "literal")) return false;
+    if (!nextTokenIs(builder_, "<literal>", LITERAL_FIRST_)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_, level_, _NONE_, LITERAL, "<literal>");
+    result_ = consumeToken(builder_, NUMBER);
+    if (!result_) result_ = consumeToken(builder_, STRING);
+    if (!result_) result_ = consumeToken(builder_, CHAR);
+    exit_section_(builder_, level_, marker_, result_, false, null);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // ID
+  public static boolean name(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "name")) return false;
+    if (!nextTokenIs(builder_, ID)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, ID);
+    exit_section_(builder_, marker_, NAME, result_);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // statement *
+  static boolean root(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "root")) return false;
+    int pos_ = current_position_(builder_);
+    while (true) {
+      if (!statement(builder_, level_ + 1)) break;
+      if (!empty_element_parsed_guard_(builder_, "root", pos_)) break;
+      pos_ = current_position_(builder_);
+    }
+    return true;
+  }
+
+  /* ********************************************************** */
+  // literal | keyword | name | value
+  static boolean statement(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "statement")) return false;
+    if (!nextTokenIs(builder_, "", STATEMENT_FIRST_)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = literal(builder_, level_ + 1);
+    if (!result_) result_ = keyword(builder_, level_ + 1);
+    if (!result_) result_ = name(builder_, level_ + 1);
+    if (!result_) result_ = value(builder_, level_ + 1);
+    exit_section_(builder_, marker_, null, result_);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // STRING | NUMBER | CHAR
+  public static boolean value(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "value")) return false;
+    if (!nextTokenIs(builder_, "<value>", LITERAL_FIRST_)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_, level_, _NONE_, VALUE, "<value>");
+    result_ = consumeToken(builder_, STRING);
+    if (!result_) result_ = consumeToken(builder_, NUMBER);
+    if (!result_) result_ = consumeToken(builder_, CHAR);
+    exit_section_(builder_, level_, marker_, result_, false, null);
+    return result_;
+  }
+
+  private static final TokenSet KEYWORD_FIRST_ = create_token_set_(ELSE, IF, WHILE);
+  private static final TokenSet LITERAL_FIRST_ = create_token_set_(CHAR, NUMBER, STRING);
+  private static final TokenSet STATEMENT_FIRST_ = create_token_set_(CHAR, ELSE,
+    ID, IF, NUMBER, STRING, WHILE);
+}
\ No newline at end of file
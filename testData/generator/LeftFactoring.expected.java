@@ -0,0 +1,190 @@
+// ---- LeftFactoring.java -----------------
+// This is a generated file. Not intended for manual editing.
+package ;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilder.Marker;
+import static generated.GeneratedTypes.*;
+import static org.intellij.grammar.parser.GeneratedParserUtilBase.*;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.lang.PsiParser;
+import com.intellij.lang.LightPsiParser;
+
+@SuppressWarnings({"SimplifiableIfStatement", "UnusedAssignment"})
+public class LeftFactoring implements PsiParser, LightPsiParser {
+
+  public ASTNode parse(IElementType root_, PsiBuilder builder_) {
+    parseLight(root_, builder_);
+    return builder_.getTreeBuilt();
+  }
+
+  public void parseLight(IElementType root_, PsiBuilder builder_) {
+    boolean result_;
+    builder_ = adapt_builder_(root_, builder_, this, null);
+    Marker marker_ = enter_section_(builder_, 0, _COLLAPSE_, null);
+    result_ = parse_root_(root_, builder_, 0);
+    exit_section_(builder_, 0, marker_, root_, result_, true, TRUE_CONDITION);
+  }
+
+  protected boolean parse_root_(IElementType root_, PsiBuilder builder_, int level_) {
+    return root(builder_, level_ + 1);
+  }
+
+  /* ********************************************************** */
+  // ID EQ ID SEMI | ID EQ NUMBER SEMI | ID EQ STRING
+  public static boolean assignment(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "assignment")) return false;
+    if (!nextTokenIs(builder_, ID)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, ID);
+    result_ = result_ && consumeToken(builder_, EQ);
+    if (result_) {
+      result_ = assignment_0(builder_, level_ + 1);
+      if (!result_) result_ = assignment_1(builder_, level_ + 1);
+      if (!result_) result_ = consumeToken(builder_, STRING);
+    }
+    exit_section_(builder_, marker_, ASSIGNMENT, result_);
+    return result_;
+  }
+
+  // ID SEMI
+  private static boolean assignment_0(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "assignment_0")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, ID);
+    result_ = result_ && consumeToken(builder_, SEMI);
+    exit_section_(builder_, marker_, null, result_);
+    return result_;
+  }
+
+  // NUMBER SEMI
+  private static boolean assignment_1(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "assignment_1")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, NUMBER);
+    result_ = result_ && consumeToken(builder_, SEMI);
+    exit_section_(builder_, marker_, null, result_);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // VAR ID COLON ID | VAR ID SEMI
+  public static boolean declaration(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "declaration")) return false;
+    if (!nextTokenIs(builder_, VAR)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = declaration_0(builder_, level_ + 1);
+    if (!result_) result_ = declaration_1(builder_, level_ + 1);
+    exit_section_(builder_, marker_, DECLARATION, result_);
+    return result_;
+  }
+
+  // VAR ID COLON ID
+  private static boolean declaration_0(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "declaration_0")) return false;
+    boolean result_, pinned_;
+    Marker marker_ = enter_section_(builder_, level_, _NONE_);
+    result_ = consumeTokens(builder_, 2, VAR, ID, COLON, ID);
+    pinned_ = result_; // pin = 2
+    exit_section_(builder_, level_, marker_, result_, pinned_, null);
+    return result_ || pinned_;
+  }
+
+  // VAR ID SEMI
+  private static boolean declaration_1(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "declaration_1")) return false;
+    boolean result_, pinned_;
+    Marker marker_ = enter_section_(builder_, level_, _NONE_);
+    result_ = consumeTokens(builder_, 2, VAR, ID, SEMI);
+    pinned_ = result_; // pin = 2
+    exit_section_(builder_, level_, marker_, result_, pinned_, null);
+    return result_ || pinned_;
+  }
+
+  /* ********************************************************** */
+  // KW ID LP RP | KW ID DOT ID
+  public static boolean recovered(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "recovered")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_, level_, _NONE_, RECOVERED, "<recovered>");
+    result_ = consumeToken(builder_, KW);
+    result_ = result_ && consumeToken(builder_, ID);
+    if (result_) {
+      result_ = recovered_0(builder_, level_ + 1);
+      if (!result_) result_ = recovered_1(builder_, level_ + 1);
+    }
+    exit_section_(builder_, level_, marker_, result_, false, recovered_recover_parser_);
+    return result_;
+  }
+
+  // LP RP
+  private static boolean recovered_0(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "recovered_0")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, LP);
+    result_ = result_ && consumeToken(builder_, RP);
+    exit_section_(builder_, marker_, null, result_);
+    return result_;
+  }
+
+  // DOT ID
+  private static boolean recovered_1(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "recovered_1")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, DOT);
+    result_ = result_ && consumeToken(builder_, ID);
+    exit_section_(builder_, marker_, null, result_);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // !SEMI
+  static boolean recovered_recover(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "recovered_recover")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_, level_, _NOT_);
+    result_ = !consumeToken(builder_, SEMI);
+    exit_section_(builder_, level_, marker_, result_, false, null);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // statement *
+  static boolean root(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "root")) return false;
+    int pos_ = current_position_(builder_);
+    while (true) {
+      if (!statement(builder_, level_ + 1)) break;
+      if (!empty_element_parsed_guard_(builder_, "root", pos_)) break;
+      pos_ = current_position_(builder_);
+    }
+    return true;
+  }
+
+  /* ********************************************************** */
+  // assignment | declaration | recovered
+  static boolean statement(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "statement")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = assignment(builder_, level_ + 1);
+    if (!result_) result_ = declaration(builder_, level_ + 1);
+    if (!result_) result_ = recovered(builder_, level_ + 1);
+    exit_section_(builder_, marker_, null, result_);
+    return result_;
+  }
+
+  final static Parser recovered_recover_parser_ = new Parser() {
+    public boolean parse(PsiBuilder builder_, int level_) {
+      return recovered_recover(builder_, level_ + 1);
+    }
+  };
+}
\ No newline at end of file
@@ -0,0 +1,182 @@
+// ---- OperatorTable.java -----------------
+// This is a generated file. Not intended for manual editing.
+package ;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilder.Marker;
+import static generated.GeneratedTypes.*;
+import static org.intellij.grammar.parser.GeneratedParserUtilBase.*;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.lang.PsiParser;
+import com.intellij.lang.LightPsiParser;
+import java.util.HashMap;
+import java.util.Map;
+
+@SuppressWarnings({"SimplifiableIfStatement", "UnusedAssignment"})
+public class OperatorTable implements PsiParser, LightPsiParser {
+
+  public ASTNode parse(IElementType root_, PsiBuilder builder_) {
+    parseLight(root_, builder_);
+    return builder_.getTreeBuilt();
+  }
+
+  public void parseLight(IElementType root_, PsiBuilder builder_) {
+    boolean result_;
+    builder_ = adapt_builder_(root_, builder_, this, EXTENDS_SETS_);
+    Marker marker_ = enter_section_(builder_, 0, _COLLAPSE_, null);
+    result_ = parse_root_(root_, builder_, 0);
+    exit_section_(builder_, 0, marker_, root_, result_, true, TRUE_CONDITION);
+  }
+
+  protected boolean parse_root_(IElementType root_, PsiBuilder builder_, int level_) {
+    return root(builder_, level_ + 1);
+  }
+
+  public static final TokenSet[] EXTENDS_SETS_ = new TokenSet[] {
+    create_token_set_(ASSIGN_EXPR, CALL_EXPR, EXPR, LITERAL_EXPR,
+      MINUS_EXPR, MUL_EXPR, PLUS_EXPR, REF_EXPR,
+      UNARY_MIN_EXPR),
+  };
+
+  /* ********************************************************** */
+  // LP expr RP
+  public static boolean arg_list(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "arg_list")) return false;
+    if (!nextTokenIs(builder_, LP)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, LP);
+    result_ = result_ && expr(builder_, level_ + 1, -1);
+    result_ = result_ && consumeToken(builder_, RP);
+    exit_section_(builder_, marker_, ARG_LIST, result_);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // expr
+  static boolean root(PsiBuilder builder_, int level_) {
+    return expr(builder_, level_ + 1, -1);
+  }
+
+  /* ********************************************************** */
+  // Expression root: expr
+  // Operator priority table:
+  // 0: BINARY(assign_expr)
+  // 1: BINARY(plus_expr) BINARY(minus_expr)
+  // 2: BINARY(mul_expr)
+  // 3: PREFIX(unary_min_expr)
+  // 4: POSTFIX(call_expr)
+  // 5: ATOM(literal_expr)
+  // 6: ATOM(ref_expr)
+  public static boolean expr(PsiBuilder builder_, int level_, int priority_) {
+    if (!recursion_guard_(builder_, level_, "expr")) return false;
+    addVariant(builder_, "<expr>");
+    boolean result_, pinned_;
+    Marker marker_ = enter_section_(builder_, level_, _NONE_, "<expr>");
+    result_ = unary_min_expr(builder_, level_ + 1);
+    if (!result_) result_ = literal_expr(builder_, level_ + 1);
+    if (!result_) result_ = ref_expr(builder_, level_ + 1);
+    pinned_ = result_;
+    result_ = result_ && expr_0(builder_, level_ + 1, priority_);
+    exit_section_(builder_, level_, marker_, null, result_, pinned_, null);
+    return result_ || pinned_;
+  }
+
+  public static boolean expr_0(PsiBuilder builder_, int level_, int priority_) {
+    if (!recursion_guard_(builder_, level_, "expr_0")) return false;
+    boolean result_ = true;
+    while (true) {
+      Marker marker_ = enter_section_(builder_, level_, _LEFT_, null);
+      int operator_ = expr_operator_(builder_, priority_);
+      if ((operator_ == 0 || operator_ == 1) && priority_ < 0 && consumeTokenSmart(builder_, EQ)) {
+        result_ = expr(builder_, level_, -1);
+        exit_section_(builder_, level_, marker_, ASSIGN_EXPR, result_, true, null);
+      }
+      else if ((operator_ == 0 || operator_ == 2) && priority_ < 1 && consumeTokenSmart(builder_, PLUS)) {
+        result_ = expr(builder_, level_, 1);
+        exit_section_(builder_, level_, marker_, PLUS_EXPR, result_, true, null);
+      }
+      else if ((operator_ == 0 || operator_ == 3) && priority_ < 1 && consumeTokenSmart(builder_, MINUS)) {
+        result_ = expr(builder_, level_, 1);
+        exit_section_(builder_, level_, marker_, MINUS_EXPR, result_, true, null);
+      }
+      else if ((operator_ == 0 || operator_ == 4) && priority_ < 2 && mul_expr_0(builder_, level_ + 1)) {
+        result_ = expr(builder_, level_, 2);
+        exit_section_(builder_, level_, marker_, MUL_EXPR, result_, true, null);
+      }
+      else if (priority_ < 4 && arg_list(builder_, level_ + 1)) {
+        result_ = true;
+        exit_section_(builder_, level_, marker_, CALL_EXPR, result_, true, null);
+      }
+      else {
+        exit_section_(builder_, level_, marker_, null, false, false, null);
+        break;
+      }
+    }
+    return result_;
+  }
+
+  private static final Map<IElementType, int[]> EXPR_OPERATORS_ = new HashMap<IElementType, int[]>();
+  static {
+    EXPR_OPERATORS_.put(EQ, new int[] {1, 0}); // assign_expr BINARY right ASSIGN_EXPR
+    EXPR_OPERATORS_.put(PLUS, new int[] {2, 1}); // plus_expr BINARY PLUS_EXPR
+    EXPR_OPERATORS_.put(MINUS, new int[] {3, 1}); // minus_expr BINARY MINUS_EXPR
+    EXPR_OPERATORS_.put(MUL, new int[] {4, 2}); // mul_expr BINARY MUL_EXPR
+    EXPR_OPERATORS_.put(DIV, new int[] {4, 2}); // mul_expr BINARY MUL_EXPR
+  }
+
+  // returns 0 if all operators shall be tried, -1 if none of the table operators matches
+  private static int expr_operator_(PsiBuilder builder_, int priority_) {
+    if (ErrorState.get(builder_).completionState != null) return 0;
+    int[] operator_ = EXPR_OPERATORS_.get(builder_.getTokenType());
+    return operator_ == null || priority_ >= operator_[1] ? -1 : operator_[0];
+  }
+
+  public static boolean unary_min_expr(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "unary_min_expr")) return false;
+    if (!nextTokenIsFast(builder_, MINUS)) return false;
+    boolean result_, pinned_;
+    Marker marker_ = enter_section_(builder_, level_, _NONE_, null);
+    result_ = consumeTokenSmart(builder_, MINUS);
+    pinned_ = result_;
+    result_ = pinned_ && expr(builder_, level_, 3);
+    exit_section_(builder_, level_, marker_, UNARY_MIN_EXPR, result_, pinned_, null);
+    return result_ || pinned_;
+  }
+
+  // MUL | DIV
+  private static boolean mul_expr_0(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "mul_expr_0")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeTokenSmart(builder_, MUL);
+    if (!result_) result_ = consumeTokenSmart(builder_, DIV);
+    exit_section_(builder_, marker_, null, result_);
+    return result_;
+  }
+
+  // NUMBER
+  public static boolean literal_expr(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "literal_expr")) return false;
+    if (!nextTokenIsFast(builder_, NUMBER)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeTokenSmart(builder_, NUMBER);
+    exit_section_(builder_, marker_, LITERAL_EXPR, result_);
+    return result_;
+  }
+
+  // ID
+  public static boolean ref_expr(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "ref_expr")) return false;
+    if (!nextTokenIsFast(builder_, ID)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeTokenSmart(builder_, ID);
+    exit_section_(builder_, marker_, REF_EXPR, result_);
+    return result_;
+  }
+
+}
\ No newline at end of file
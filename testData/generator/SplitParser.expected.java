@@ -0,0 +1,190 @@
+// ---- SplitParser.java -----------------
+// This is a generated file. Not intended for manual editing.
+package ;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilder.Marker;
+import static generated.GeneratedTypes.*;
+import static org.intellij.grammar.parser.GeneratedParserUtilBase.*;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.lang.PsiParser;
+import com.intellij.lang.LightPsiParser;
+
+@SuppressWarnings({"SimplifiableIfStatement", "UnusedAssignment"})
+public class SplitParser implements PsiParser, LightPsiParser {
+
+  public ASTNode parse(IElementType root_, PsiBuilder builder_) {
+    parseLight(root_, builder_);
+    return builder_.getTreeBuilt();
+  }
+
+  public void parseLight(IElementType root_, PsiBuilder builder_) {
+    boolean result_;
+    builder_ = adapt_builder_(root_, builder_, this, null);
+    Marker marker_ = enter_section_(builder_, 0, _COLLAPSE_, null);
+    result_ = parse_light_0_(root_, builder_);
+    exit_section_(builder_, 0, marker_, root_, result_, true, TRUE_CONDITION);
+  }
+
+  private boolean parse_light_0_(IElementType root_, PsiBuilder builder_) {
+    boolean result_;
+    if (root_ == A_RULE) {
+      result_ = a_rule(builder_, 0);
+    }
+    else if (root_ == B_RULE) {
+      result_ = SplitParser1.b_rule(builder_, 0);
+    }
+    else {
+      result_ = parse_light_1_(root_, builder_);
+    }
+    return result_;
+  }
+
+  private boolean parse_light_1_(IElementType root_, PsiBuilder builder_) {
+    boolean result_;
+    if (root_ == C_RULE) {
+      result_ = SplitParser1.c_rule(builder_, 0);
+    }
+    else if (root_ == D_RULE) {
+      result_ = SplitParser2.d_rule(builder_, 0);
+    }
+    else {
+      result_ = parse_root_(root_, builder_, 0);
+    }
+    return result_;
+  }
+
+  protected boolean parse_root_(IElementType root_, PsiBuilder builder_, int level_) {
+    return root(builder_, level_ + 1);
+  }
+
+  /* ********************************************************** */
+  // A B
+  public static boolean a_rule(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "a_rule")) return false;
+    if (!nextTokenIs(builder_, A)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeTokens(builder_, 0, A, B);
+    exit_section_(builder_, marker_, A_RULE, result_);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // item *
+  static boolean root(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "root")) return false;
+    int pos_ = current_position_(builder_);
+    while (true) {
+      if (!SplitParser2.item(builder_, level_ + 1)) break;
+      if (!empty_element_parsed_guard_(builder_, "root", pos_)) break;
+      pos_ = current_position_(builder_);
+    }
+    return true;
+  }
+
+}
+// ---- SplitParser1.java -----------------
+// This is a generated file. Not intended for manual editing.
+package ;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilder.Marker;
+import static generated.GeneratedTypes.*;
+import static org.intellij.grammar.parser.GeneratedParserUtilBase.*;
+import static SplitParser.*;
+
+@SuppressWarnings({"SimplifiableIfStatement", "UnusedAssignment"})
+public class SplitParser1 {
+
+  /* ********************************************************** */
+  // B (A | C)
+  public static boolean b_rule(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "b_rule")) return false;
+    if (!nextTokenIs(builder_, B)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, B);
+    result_ = result_ && b_rule_1(builder_, level_ + 1);
+    exit_section_(builder_, marker_, B_RULE, result_);
+    return result_;
+  }
+
+  // A | C
+  private static boolean b_rule_1(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "b_rule_1")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, A);
+    if (!result_) result_ = consumeToken(builder_, C);
+    exit_section_(builder_, marker_, null, result_);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // C
+  public static boolean c_rule(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "c_rule")) return false;
+    if (!nextTokenIs(builder_, C)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, C);
+    exit_section_(builder_, marker_, C_RULE, result_);
+    return result_;
+  }
+
+}
+// ---- SplitParser2.java -----------------
+// This is a generated file. Not intended for manual editing.
+package ;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lang.PsiBuilder.Marker;
+import static generated.GeneratedTypes.*;
+import static org.intellij.grammar.parser.GeneratedParserUtilBase.*;
+import static SplitParser.*;
+
+@SuppressWarnings({"SimplifiableIfStatement", "UnusedAssignment"})
+public class SplitParser2 {
+
+  /* ********************************************************** */
+  // D
+  public static boolean d_rule(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "d_rule")) return false;
+    if (!nextTokenIs(builder_, D)) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = consumeToken(builder_, D);
+    exit_section_(builder_, marker_, D_RULE, result_);
+    return result_;
+  }
+
+  /* ********************************************************** */
+  // a_rule | b_rule | c_rule | d_rule
+  static boolean item(PsiBuilder builder_, int level_) {
+    if (!recursion_guard_(builder_, level_, "item")) return false;
+    boolean result_;
+    Marker marker_ = enter_section_(builder_);
+    result_ = item_part0_(builder_, level_ + 1);
+    if (!result_) result_ = item_part1_(builder_, level_ + 1);
+    exit_section_(builder_, marker_, null, result_);
+    return result_;
+  }
+
+  private static boolean item_part0_(PsiBuilder builder_, int level_) {
+    boolean result_;
+    result_ = a_rule(builder_, level_ + 1);
+    if (!result_) result_ = SplitParser1.b_rule(builder_, level_ + 1);
+    return result_;
+  }
+
+  private static boolean item_part1_(PsiBuilder builder_, int level_) {
+    boolean result_;
+    result_ = SplitParser1.c_rule(builder_, level_ + 1);
+    if (!result_) result_ = d_rule(builder_, level_ + 1);
+    return result_;
+  }
+
+}
\ No newline at end of file
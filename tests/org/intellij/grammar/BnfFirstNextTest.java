@@ -2,7 +2,11 @@ package org.intellij.grammar;
 
 import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.Functions;
+import com.intellij.util.containers.ContainerUtil;
+import org.intellij.grammar.analysis.BnfBacktrackingAnalyzer;
 import org.intellij.grammar.analysis.BnfFirstNextAnalyzer;
+import org.intellij.grammar.analysis.BnfFirstNextTable;
 import org.intellij.grammar.psi.BnfFile;
 import org.intellij.grammar.psi.BnfRule;
 
@@ -68,8 +72,45 @@ public class BnfFirstNextTest extends LightPlatformCodeInsightFixtureTestCase {
   public void testRecursivePredicateTest() { doFirstTest("r ::= p A s ::= p r p ::= &<<A>>", "A"); }
 
   public void testPinnedToReport1() { doFirstTest("r ::= B | s s ::= &A B {pin=1}", "A", "B"); }
+  public void testPinnedNullable() { doFirstTest("r ::= [A] B {pin=1}", MATCHES_EOF, "A", "B"); }
+  public void testNullableChain() { doFirstTest("r ::= s t C s ::= A? t ::= B*", "A", "B", "C"); }
+
   public void testPinnedToReport2() { doFirstTest("r ::= B | s s ::= &<<aux>> B {pin=1}", "#aux", "B"); }
 
+  public void testTableExact() {
+    BnfFile f = (BnfFile)myFixture.configureByText("a.bnf", "r ::= s | p s ::= A s? p ::= &B B q ::= q A | C");
+    BnfFirstNextTable table = BnfFirstNextTable.getCached(f);
+    assertFalse(table.isExact(f.getRule("r")));
+    assertTrue(table.isExact(f.getRule("s")));
+    assertFalse(table.isExact(f.getRule("q")));
+    assertFalse(table.isNullable(f.getRule("s")));
+    assertOrderedEquals(ArrayUtil.toStringArray(table.getFirst(f.getRule("s"))), "A");
+    assertOrderedEquals(ArrayUtil.toStringArray(table.getFirstApproximate(f.getRule("p").getExpression())), "B");
+    assertOrderedEquals(ArrayUtil.toStringArray(table.getFirstSet(f.getRule("q"))), "C", "q");
+    assertOrderedEquals(ArrayUtil.toStringArray(table.getNext(f.getRule("s"))), MATCHES_EOF);
+    assertSame(table.getNext(f.getRule("q")), table.getNext(f.getRule("q")));
+  }
+
+  public void testBacktrackingNone() { doBacktrackingTest("r ::= A B | C D"); }
+  public void testBacktrackingOverlap() {
+    doBacktrackingTest("r ::= A B C | A B | s s ::= [X] A",
+                       "r: score 5, rollback depth 2, ambiguous branches 3, predicates 0, tokens: [A]");
+  }
+  public void testBacktrackingPinned() {
+    doBacktrackingTest("r ::= A B C | A {pin(\".*\")=2}",
+                       "r: score 1, rollback depth 1, ambiguous branches 1, predicates 0, tokens: [A]");
+  }
+  public void testBacktrackingPredicate() {
+    doBacktrackingTest("r ::= !(A B) s s ::= A | B",
+                       "r: score 2, rollback depth 2, ambiguous branches 0, predicates 1");
+  }
+
+  private void doBacktrackingTest(String text, String... expected) {
+    BnfFile f = (BnfFile)myFixture.configureByText("a.bnf", text);
+    List<BnfBacktrackingAnalyzer.RuleCost> costs = new BnfBacktrackingAnalyzer(f).analyze();
+    assertOrderedEquals(ContainerUtil.map(costs, Functions.<BnfBacktrackingAnalyzer.RuleCost>TO_STRING()), expected);
+  }
+
   private void doFirstTest(String text, String... expected) { doTest(text, true, expected); }
   private void doNextTest(String text, String... expected) { doTest(text, false, expected); }
 
@@ -82,5 +123,12 @@ public class BnfFirstNextTest extends LightPlatformCodeInsightFixtureTestCase {
     String[] result = ArrayUtil.toStringArray(strings);
     Arrays.sort(result);
     assertOrderedEquals(result, expected);
+    BnfFirstNextTable table = BnfFirstNextTable.getCached(f);
+    Set<String> tableFirst = first ? table.getFirst(rules.get(0)) : null;
+    if (tableFirst != null) {
+      assertOrderedEquals(ArrayUtil.toStringArray(tableFirst), expected);
+    }
+    Set<String> tableResult = first ? table.getFirstSet(rules.get(0)) : table.getNext(rules.get(0));
+    assertOrderedEquals(ArrayUtil.toStringArray(tableResult), expected);
   }
 }
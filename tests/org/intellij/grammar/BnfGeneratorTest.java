@@ -4,6 +4,7 @@ import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.rt.execution.junit.FileComparisonFailure;
 import com.intellij.util.containers.ContainerUtil;
+import org.intellij.grammar.generator.GenerationStats;
 import org.intellij.grammar.generator.ParserGenerator;
 import org.intellij.grammar.psi.impl.BnfFileImpl;
 import org.jetbrains.annotations.NonNls;
@@ -37,6 +38,13 @@ public class BnfGeneratorTest extends BnfGeneratorTestCase {
   public void testAutoRecovery() throws Exception { doGenTest(true); }
   public void testUpperRules() throws Exception { doGenTest(true); }
   public void testFixes() throws Exception { doGenTest(true); }
+  public void testOperatorTable() throws Exception { doGenTest(false); }
+  public void testSplitParser() throws Exception { doGenTest(false); }
+  public void testLeftFactoring() throws Exception {
+    GenerationStats stats = doGenTest(false);
+    assertOrderedEquals(stats.getList(ParserGenerator.LEFT_FACTORED_CHOICES), "assignment (prefix 2)", "recovered (prefix 2)");
+  }
+  public void testFirstCheckSets() throws Exception { doGenTest(false); }
 
   public void testEmpty() throws Exception {
     myFile = createPsiFile("empty.bnf", "{ }");
@@ -47,13 +55,18 @@ public class BnfGeneratorTest extends BnfGeneratorTestCase {
     return new ParserGenerator((BnfFileImpl)myFile, "", myFullDataPath) {
 
       @Override
-      protected PrintWriter openOutputInner(File file) throws IOException {
+      protected void writeOutputInner(File file, CharSequence text) throws IOException {
         String grammarName = FileUtil.getNameWithoutExtension(myFile.getName());
         String fileName = FileUtil.getNameWithoutExtension(file);
         String name = grammarName + (fileName.startsWith(grammarName) || fileName.endsWith("Parser") ? "" : ".PSI") + ".java";
         PrintWriter out = new PrintWriter(new FileOutputStream(new File(myFullDataPath, name), true));
-        out.println("// ---- " + file.getName() + " -----------------");
-        return out;
+        try {
+          out.println("// ---- " + file.getName() + " -----------------");
+          out.print(text);
+        }
+        finally {
+          out.close();
+        }
       }
     };
   }
@@ -65,7 +78,7 @@ public class BnfGeneratorTest extends BnfGeneratorTestCase {
     return super.loadFile(name);
   }
 
-  public void doGenTest(final boolean generatePsi) throws Exception {
+  public GenerationStats doGenTest(final boolean generatePsi) throws Exception {
     final String name = getTestName(false);
     String text = loadFile(name + "." + myFileExt);
     myFile = createPsiFile(name, text.replaceAll("generatePsi=[^\n]*", "generatePsi=" + generatePsi));
@@ -118,5 +131,6 @@ public class BnfGeneratorTest extends BnfGeneratorTestCase {
       System.err.println(message);
     }
     assertTrue(OVERWRITE_TESTDATA || messages.isEmpty());
+    return parserGenerator.getStats();
   }
 }
@@ -1,13 +1,27 @@
 package org.intellij.grammar;
 
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.DebugUtil;
+import com.intellij.psi.impl.source.text.BlockSupportImpl;
+import com.intellij.psi.impl.source.text.DiffLog;
+import com.intellij.psi.tree.IReparseableElementType;
 import com.intellij.testFramework.LightVirtualFile;
+import com.intellij.util.containers.ContainerUtil;
 import org.intellij.grammar.livePreview.LivePreviewHelper;
 import org.intellij.grammar.livePreview.LivePreviewLanguage;
+import org.intellij.grammar.livePreview.LivePreviewLexer;
 import org.intellij.grammar.psi.BnfFile;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author gregsh
@@ -28,18 +42,123 @@ public class BnfLivePreviewParserTest extends BnfGeneratorTestCase {
 
   public void testCase75() throws IOException { doTest(); }
 
+  public void testLexerRestart() throws IOException {
+    LivePreviewLanguage language = createLanguage("Json.bnf");
+    try {
+      String text = loadFile("JsonRecovery.live.txt");
+      List<String> tokens = lex(new LivePreviewLexer(getProject(), language), text, 0);
+      for (int i = 0; i < tokens.size(); i++) {
+        int start = Integer.parseInt(tokens.get(i).substring(0, tokens.get(i).indexOf(':')));
+        assertEquals(tokens.subList(i, tokens.size()), lex(new LivePreviewLexer(getProject(), language), text, start));
+      }
+    }
+    finally {
+      LivePreviewHelper.unregisterLanguageExtensions(language);
+    }
+  }
+
+  public void testLanguagePool() throws IOException {
+    BnfFile json = createGrammar("Json.bnf");
+    BnfFile expr = createGrammar("../generator/ExprParser.bnf");
+    String text = loadFile("JsonRecovery.live.txt");
+    LivePreviewLanguage language1 = (LivePreviewLanguage)LivePreviewHelper.getLanguageFor(json);
+    assertSame(language1, LivePreviewHelper.getLanguageFor(json));
+    assertTokenLanguage(language1, text);
+    VirtualFile preview = LivePreviewHelper.parseFile(json, text).getVirtualFile();
+    assertSame(language1, LivePreviewHelper.getPreviewLanguage(preview));
+    LivePreviewHelper.releaseLanguage(getProject(), language1);
+    assertNull(language1.getGrammarFile());
+
+    LivePreviewLanguage language2 = (LivePreviewLanguage)LivePreviewHelper.getLanguageFor(expr);
+    LivePreviewLanguage language3 = null;
+    try {
+      // the released instance is reused for the next grammar
+      assertSame(language1, language2);
+      assertSame(expr.getVirtualFile(), language2.getGrammarFile());
+      // a preview created for the first grammar is not taken for the rebound language
+      assertNull(LivePreviewHelper.getPreviewLanguage(preview));
+      // ..and the first grammar gets another one with its own token types
+      language3 = (LivePreviewLanguage)LivePreviewHelper.getLanguageFor(json);
+      assertNotSame(language2, language3);
+      assertSame(json.getVirtualFile(), language3.getGrammarFile());
+      assertTokenLanguage(language3, text);
+    }
+    finally {
+      LivePreviewHelper.releaseLanguage(getProject(), language2);
+      if (language3 != null) LivePreviewHelper.releaseLanguage(getProject(), language3);
+    }
+  }
+
+  public void testBlockReparse() throws IOException {
+    myLanguage = createLanguage("Json.bnf");
+    try {
+      String text = "{\"a\": [1, 2], \"b\": {\"c\": 3}}";
+      int offset = text.indexOf('3') + 1;
+      // the change stays inside the inner object, so only that block is reparsed
+      assertTrue(isBlockParsable(text, offset, ", \"d\": 4"));
+      assertReparse(text, offset, ", \"d\": 4");
+      // an unbalanced change does not fit any block and the whole file is reparsed
+      assertFalse(isBlockParsable(text, offset, "}"));
+      assertFalse(isBlockParsable(text, offset, "{"));
+      assertReparse(text, offset, "}");
+    }
+    finally {
+      LivePreviewHelper.unregisterLanguageExtensions((LivePreviewLanguage)myLanguage);
+    }
+  }
+
+  private boolean isBlockParsable(String text, int offset, String insert) {
+    PsiFile file = createPsiFile("a", text);
+    ASTNode node = file.getNode().findLeafElementAt(offset);
+    while (node != null && !(node.getElementType() instanceof IReparseableElementType)) {
+      node = node.getTreeParent();
+    }
+    assertNotNull(node);
+    TextRange range = node.getTextRange();
+    String newText = text.substring(range.getStartOffset(), offset) + insert + text.substring(offset, range.getEndOffset());
+    return ((IReparseableElementType)node.getElementType()).isParsable(newText, file.getLanguage(), getProject());
+  }
+
+  private void assertReparse(String text, int offset, String insert) {
+    PsiFile file = createPsiFile("a", text);
+    String newText = text.substring(0, offset) + insert + text.substring(offset);
+    DiffLog diffLog = new BlockSupportImpl(getProject()).reparseRange(
+      file, new TextRange(offset, offset), newText, new EmptyProgressIndicator());
+    diffLog.performActualPsiChange(file);
+    assertEquals(newText, file.getText());
+    assertEquals(DebugUtil.psiToString(createPsiFile("b", newText), false), DebugUtil.psiToString(file, false));
+  }
+
+  private void assertTokenLanguage(LivePreviewLanguage language, String text) {
+    Lexer lexer = new LivePreviewLexer(getProject(), language);
+    int count = 0;
+    for (lexer.start(text); lexer.getTokenType() != null; lexer.advance()) {
+      Language tokenLanguage = lexer.getTokenType().getLanguage();
+      if (!(tokenLanguage instanceof LivePreviewLanguage)) continue;
+      assertSame(lexer.getTokenType().toString(), language, tokenLanguage);
+      count++;
+    }
+    assertTrue(count > 0);
+  }
+
+  private static List<String> lex(Lexer lexer, String text, int start) {
+    List<String> result = ContainerUtil.newArrayList();
+    lexer.start(text, start, text.length(), 0);
+    while (lexer.getTokenType() != null) {
+      assertEquals(0, lexer.getState());
+      result.add(lexer.getTokenStart() + ":" + lexer.getTokenType());
+      lexer.advance();
+    }
+    return result;
+  }
+
   protected void doTest() throws IOException {
     doTest(getTestName(false) + ".bnf");
   }
 
   @Override
   protected void doTest(String grammarFile) throws IOException {
-    File grammarIOFile = new File(myFullDataPath, grammarFile);
-    assertNotNull(grammarFile + "not found", grammarIOFile.exists());
-    LightVirtualFile grammarVFile = new LightVirtualFile(grammarFile, FileUtil.loadFile(grammarIOFile));
-    myLanguage = BnfLanguage.INSTANCE;
-    BnfFile grammarPsi = (BnfFile) createFile(grammarVFile);
-    myLanguage = LivePreviewHelper.getLanguageFor(grammarPsi);
+    myLanguage = createLanguage(grammarFile);
     try {
       super.doTest(true);
     }
@@ -48,4 +167,16 @@ public class BnfLivePreviewParserTest extends BnfGeneratorTestCase {
     }
   }
 
+  private LivePreviewLanguage createLanguage(String grammarFile) throws IOException {
+    return (LivePreviewLanguage)LivePreviewHelper.getLanguageFor(createGrammar(grammarFile));
+  }
+
+  private BnfFile createGrammar(String grammarFile) throws IOException {
+    File grammarIOFile = new File(myFullDataPath, grammarFile);
+    assertNotNull(grammarFile + "not found", grammarIOFile.exists());
+    LightVirtualFile grammarVFile = new LightVirtualFile(grammarFile, FileUtil.loadFile(grammarIOFile));
+    myLanguage = BnfLanguage.INSTANCE;
+    return (BnfFile) createFile(grammarVFile);
+  }
+
 }
@@ -17,6 +17,7 @@
 package org.intellij.grammar;
 
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.impl.source.tree.LeafPsiElement;
 import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase;
@@ -38,12 +39,41 @@ public class BnfRuleGraphTest extends LightPlatformCodeInsightFixtureTestCase {
   public void testSOEInPrivateMeta() { doTest("private r ::= A <<r>> external A::=", "A+"); }
   public void testSOEInPrivate() { doTest("private r ::= A r external A::=", "A+"); }
 
+  public void testIncrementalUpdate() {
+    BnfFile f = (BnfFile)myFixture.configureByText("a.bnf",
+      "{tokens=[A='a' B='b' C='c']}\n" +
+      "root ::= item *\n" +
+      "item ::= pair | single\n" +
+      "pair ::= single (',' single) <caret>\n" +
+      "single ::= A | B\n" +
+      "private list ::= item (',' item)*\n" +
+      "block ::= '{' list '}'\n");
+    RuleGraphHelper previous = new RuleGraphHelper(f);
+    myFixture.type("C");
+    PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+    RuleGraphHelper updated = new RuleGraphHelper(f, previous);
+    RuleGraphHelper expected = new RuleGraphHelper(f);
+    assertEquals(f.getRules().size(), expected.getRecomputedCount());
+    // the edited rule and its direct public referrer
+    assertEquals(2, updated.getRecomputedCount());
+    assertEquals(0, new RuleGraphHelper(f, updated).getRecomputedCount());
+    for (BnfRule rule : f.getRules()) {
+      assertEquals(rule.getName(), printContents(expected.getFor(rule)), printContents(updated.getFor(rule)));
+      assertEquals(rule.getName(), expected.getSubRules(rule), updated.getSubRules(rule));
+      assertEquals(rule.getName(), expected.canCollapse(rule), updated.canCollapse(rule));
+    }
+  }
+
   private void doTest(String text, String... expected) {
     BnfFile f = (BnfFile)myFixture.configureByText("a.bnf", text);
     List<BnfRule> rules = f.getRules();
     assertFalse(rules.isEmpty());
     RuleGraphHelper helper = new RuleGraphHelper(f);
     Map<PsiElement,RuleGraphHelper.Cardinality> map = helper.getFor(rules.get(0));
+    assertEquals(StringUtil.join(expected, "\n"), printContents(map));
+  }
+
+  private static String printContents(Map<PsiElement, RuleGraphHelper.Cardinality> map) {
     Collection<BnfRule> sortedPublicRules = ParserGeneratorUtil.getSortedPublicRules(map.keySet());
     Collection<BnfExpression> sortedTokens = ParserGeneratorUtil.getSortedTokens(map.keySet());
     Collection<LeafPsiElement> sortedExternalRules = ParserGeneratorUtil.getSortedExternalRules(map.keySet());
@@ -51,7 +81,6 @@ public class BnfRuleGraphTest extends LightPlatformCodeInsightFixtureTestCase {
     BnfDocumentationProvider.printElements(map, sortedPublicRules, sb);
     BnfDocumentationProvider.printElements(map, sortedTokens, sb);
     BnfDocumentationProvider.printElements(map, sortedExternalRules, sb);
-    String output = sb.toString().trim().replace(' ', '\n');
-    assertEquals(StringUtil.join(expected, "\n"), output);
+    return sb.toString().trim().replace(' ', '\n');
   }
 }